@@ -0,0 +1,102 @@
+package net.fabricmc.example.benchmark;
+
+import net.fabricmc.example.avatars.FiguaModelPart;
+import net.fabricmc.example.management.deserializers.ModelPartDeserializer;
+import net.fabricmc.example.management.deserializers.VertexDataDeserializer;
+import net.fabricmc.example.management.serializers.BBModelSerializer;
+import net.fabricmc.example.management.serializers.LocalAvatarSerializer;
+import net.fabricmc.example.rendering.MeshData;
+import net.minecraft.nbt.NbtCompound;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for each stage of loading an avatar, from the .bbmodel file
+ * on disk up to (but not including) the GL upload.
+ *
+ * Run with "gradlew jmh". The task enables the GC profiler, so look at
+ * gc.alloc.rate.norm for the bytes allocated per operation. Divide by
+ * cuboidCount to get the cost per cuboid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvatarLoadBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int cuboidCount;
+
+    @Param({"1", "4"})
+    public int depth;
+
+    @Param({"0.0", "0.5"})
+    public double fractionalShare;
+
+    //Size of the base64 texture payload, which the importer should ignore
+    @Param({"262144"})
+    public int texturePayloadBytes;
+
+    private Path avatarFolder;
+    private String json;
+    private NbtCompound modelNbt;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SyntheticBBModel generator = new SyntheticBBModel(cuboidCount, depth, fractionalShare, texturePayloadBytes);
+        json = generator.generate();
+
+        avatarFolder = Files.createTempDirectory("figua-bench");
+        generator.writeAvatar(avatarFolder);
+
+        modelNbt = new BBModelSerializer().parse(json);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(avatarFolder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * .bbmodel json -> model NBT, without the file read.
+     */
+    @Benchmark
+    public NbtCompound parseBBModel() {
+        return new BBModelSerializer().parse(json);
+    }
+
+    /**
+     * Avatar folder on disk -> avatar NBT. Includes reading the files.
+     */
+    @Benchmark
+    public NbtCompound serializeLocalAvatar() {
+        return new LocalAvatarSerializer().serialize(avatarFolder);
+    }
+
+    /**
+     * Model NBT -> tree of FiguaModelParts, as done for every new AvatarState.
+     */
+    @Benchmark
+    public FiguaModelPart deserializeModelParts() {
+        return new ModelPartDeserializer().deserialize(modelNbt.getCompound("root"));
+    }
+
+    /**
+     * Model NBT -> MeshData, everything done before the mesh is uploaded to a VAO.
+     */
+    @Benchmark
+    public MeshData buildMeshData() {
+        return new VertexDataDeserializer().deserialize(modelNbt);
+    }
+
+}
@@ -0,0 +1,117 @@
+package net.fabricmc.example.benchmark;
+
+import net.fabricmc.example.math.AffineBatchKernel;
+import net.fabricmc.example.math.Matrix4;
+import net.fabricmc.example.math.ScalarAffineKernel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for composing one depth level of a posed model, like CompiledPartTree does every frame
+ * for every part which moved. Compares the old way with Matrix4 records against both AffineBatchKernels.
+ *
+ * The vector kernel is only picked when the JVM has the jdk.incubator.vector module, which
+ * the "jmh" task adds. Check the "kernel" line printed at setup to see which one actually ran.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoseBenchmark {
+
+    private static final int STRIDE = 12;
+
+    //Parts in the level being composed. Their parents make up another level, a quarter the size.
+    @Param({"256", "4096", "16384"})
+    public int partCount;
+
+    private Matrix4[] parentRecords;
+    private Matrix4[] localRecords;
+    private int[] parentIndices;
+
+    private float[] world;
+    private float[] local;
+    private int[] nodeOffsets;
+    private int[] parentOffsets;
+
+    private final AffineBatchKernel scalar = new ScalarAffineKernel();
+    private AffineBatchKernel best;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1234);
+        int parentCount = Math.max(partCount / 4, 1);
+        parentRecords = new Matrix4[parentCount];
+        localRecords = new Matrix4[partCount];
+        parentIndices = new int[partCount];
+        for (int i = 0; i < parentCount; i++)
+            parentRecords[i] = randomAffine(random);
+        for (int i = 0; i < partCount; i++) {
+            localRecords[i] = randomAffine(random);
+            parentIndices[i] = random.nextInt(parentCount);
+        }
+
+        //Same matrices in the flat layout, parents first and then the parts
+        world = new float[(parentCount + partCount) * STRIDE];
+        local = new float[(parentCount + partCount) * STRIDE];
+        nodeOffsets = new int[partCount];
+        parentOffsets = new int[partCount];
+        for (int i = 0; i < parentCount; i++)
+            putRows(parentRecords[i], world, i * STRIDE);
+        for (int i = 0; i < partCount; i++) {
+            nodeOffsets[i] = (parentCount + i) * STRIDE;
+            parentOffsets[i] = parentIndices[i] * STRIDE;
+            putRows(localRecords[i], local, nodeOffsets[i]);
+        }
+
+        best = AffineBatchKernel.get();
+        System.out.println("kernel: " + best.getClass().getSimpleName());
+    }
+
+    /**
+     * How parts were posed before CompiledPartTree, with a new Matrix4 for every part.
+     */
+    @Benchmark
+    public void matrix4Multiply(Blackhole blackhole) {
+        for (int i = 0; i < partCount; i++)
+            blackhole.consume(localRecords[i].multiply(parentRecords[parentIndices[i]]));
+    }
+
+    @Benchmark
+    public float[] scalarKernel() {
+        scalar.compose(world, local, nodeOffsets, parentOffsets, 0, partCount);
+        return world;
+    }
+
+    /**
+     * Whichever kernel AffineBatchKernel.get() picks on this JVM.
+     */
+    @Benchmark
+    public float[] bestKernel() {
+        best.compose(world, local, nodeOffsets, parentOffsets, 0, partCount);
+        return world;
+    }
+
+    private static Matrix4 randomAffine(Random random) {
+        return Matrix4.scale(1 + random.nextDouble(), 1 + random.nextDouble(), 1 + random.nextDouble())
+                .multiply(Matrix4.rotateZ(random.nextDouble() * Math.PI))
+                .multiply(Matrix4.rotateY(random.nextDouble() * Math.PI))
+                .multiply(Matrix4.rotateX(random.nextDouble() * Math.PI))
+                .multiply(Matrix4.translate(random.nextDouble() * 16, random.nextDouble() * 16, random.nextDouble() * 16));
+    }
+
+    private static void putRows(Matrix4 m, float[] array, int offset) {
+        float[] rows = {
+                (float) m.a11(), (float) m.a12(), (float) m.a13(), (float) m.a14(),
+                (float) m.a21(), (float) m.a22(), (float) m.a23(), (float) m.a24(),
+                (float) m.a31(), (float) m.a32(), (float) m.a33(), (float) m.a34()
+        };
+        System.arraycopy(rows, 0, array, offset, STRIDE);
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.fabricmc.example.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Builds fake .bbmodel files for the benchmarks, so we can measure the
+ * load path on avatars of whatever shape we want without checking
+ * a pile of huge models into the repo.
+ *
+ * The output is deterministic for a given set of parameters.
+ */
+public class SyntheticBBModel {
+
+    private static final String[] FACES = {"north", "east", "south", "west", "up", "down"};
+    private static final int TEXTURE_SIZE = 64;
+    private static final long SEED = 1234;
+
+    private final int cuboidCount;
+    private final int depth;
+    private final double fractionalShare;
+    private final int texturePayloadBytes;
+    private final int leafCount;
+    private final Random random;
+
+    /**
+     * @param cuboidCount How many cuboids the model should contain.
+     * @param depth How deeply groups are nested. 0 puts every cuboid directly in the outliner.
+     * @param fractionalShare The chance, from 0 to 1, that any given coordinate or UV is not a whole number.
+     * @param texturePayloadBytes Size of the (unused) base64 texture payload to embed, like Blockbench does.
+     */
+    public SyntheticBBModel(int cuboidCount, int depth, double fractionalShare, int texturePayloadBytes) {
+        this.cuboidCount = cuboidCount;
+        this.depth = depth;
+        this.fractionalShare = fractionalShare;
+        this.texturePayloadBytes = texturePayloadBytes;
+        //Groups form a binary tree, which stops branching after 10 levels and just nests from there
+        this.leafCount = 1 << Math.min(Math.max(depth - 1, 0), 10);
+        this.random = new Random(SEED);
+    }
+
+    /**
+     * Generates the contents of the .bbmodel file.
+     */
+    public String generate() {
+        random.setSeed(SEED);
+        StringBuilder json = new StringBuilder(cuboidCount * 700 + texturePayloadBytes + 256);
+        json.append("{\"meta\":{\"format_version\":\"4.0\",\"model_format\":\"free\",\"box_uv\":false},");
+        json.append("\"name\":\"synthetic\",");
+        json.append("\"resolution\":{\"width\":").append(TEXTURE_SIZE).append(",\"height\":").append(TEXTURE_SIZE).append("},");
+
+        json.append("\"elements\":[");
+        for (int i = 0; i < cuboidCount; i++) {
+            if (i > 0) json.append(',');
+            appendCuboid(json, i);
+        }
+        json.append("],");
+
+        //Spread the cuboids evenly over the leaves of the group tree
+        json.append("\"outliner\":[");
+        if (depth == 0)
+            appendCuboidRefs(json, 0);
+        else
+            appendGroup(json, "group", 1, 0, leafCount);
+        json.append("],");
+
+        json.append("\"textures\":[{\"name\":\"texture.png\",\"id\":\"0\",\"source\":\"data:image/png;base64,");
+        for (int i = 0; i < texturePayloadBytes; i++)
+            json.append((char) ('A' + random.nextInt(26)));
+        json.append("\"}],");
+
+        json.append("\"animations\":[]}");
+        return json.toString();
+    }
+
+    /**
+     * Writes an avatar folder containing the generated model, in the layout
+     * LocalAvatarSerializer expects.
+     * @param folder The folder to write into. Created if it doesn't exist.
+     */
+    public void writeAvatar(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve("model.bbmodel"), generate());
+        Files.writeString(folder.resolve("script.lua"), "events.render:register(function(delta) end)");
+    }
+
+    private void appendGroup(StringBuilder json, String name, int level, int firstLeaf, int leaves) {
+        json.append("{\"name\":\"").append(name).append("\",");
+        json.append("\"origin\":[").append(coordinate()).append(',').append(coordinate()).append(',').append(coordinate()).append("],");
+        json.append("\"rotation\":[0,").append(random.nextInt(4) * 15).append(",0],");
+        json.append("\"uuid\":\"group-").append(level).append('-').append(firstLeaf).append("\",");
+        json.append("\"children\":[");
+        if (level == depth) {
+            appendCuboidRefs(json, firstLeaf);
+        } else if (leaves == 1) {
+            //Out of leaves to split, so just keep nesting
+            appendGroup(json, name + "_a", level + 1, firstLeaf, 1);
+        } else {
+            int half = leaves / 2;
+            appendGroup(json, name + "_a", level + 1, firstLeaf, half);
+            json.append(',');
+            appendGroup(json, name + "_b", level + 1, firstLeaf + half, leaves - half);
+        }
+        json.append("]}");
+    }
+
+    /**
+     * Appends the uuid of every cuboid which belongs to this leaf.
+     */
+    private void appendCuboidRefs(StringBuilder json, int leaf) {
+        boolean first = true;
+        for (int i = leaf; i < cuboidCount; i += leafCount) {
+            if (!first) json.append(',');
+            json.append('"').append(uuid(i)).append('"');
+            first = false;
+        }
+    }
+
+    private void appendCuboid(StringBuilder json, int index) {
+        json.append("{\"name\":\"cube").append(index).append("\",\"type\":\"cube\",");
+        double x = coordinate(), y = coordinate(), z = coordinate();
+        json.append("\"from\":[").append(x).append(',').append(y).append(',').append(z).append("],");
+        json.append("\"to\":[").append(x + size()).append(',').append(y + size()).append(',').append(z + size()).append("],");
+        json.append("\"origin\":[").append(x).append(',').append(y).append(',').append(z).append("],");
+        if (random.nextInt(4) == 0)
+            json.append("\"rotation\":[").append(random.nextInt(4) * 22.5).append(",0,0],");
+        json.append("\"faces\":{");
+        for (int f = 0; f < FACES.length; f++) {
+            if (f > 0) json.append(',');
+            json.append('"').append(FACES[f]).append("\":{\"uv\":[");
+            double u = uv(), v = uv();
+            json.append(u).append(',').append(v).append(',').append(u + size()).append(',').append(v + size()).append(']');
+            if (random.nextInt(8) == 0)
+                json.append(",\"rotation\":").append(random.nextInt(4) * 90);
+            //Occasionally leave out a face entirely, like Blockbench does for hidden faces
+            json.append(",\"texture\":").append(random.nextInt(16) == 0 ? "null" : "0").append('}');
+        }
+        json.append("},\"uuid\":\"").append(uuid(index)).append("\"}");
+    }
+
+    private double coordinate() {
+        return maybeFractional(random.nextInt(32) - 16);
+    }
+
+    private double uv() {
+        return maybeFractional(random.nextInt(TEXTURE_SIZE / 2));
+    }
+
+    private double size() {
+        return maybeFractional(1 + random.nextInt(8));
+    }
+
+    private double maybeFractional(int whole) {
+        if (random.nextDouble() < fractionalShare)
+            return whole + random.nextInt(16) / 16.0 + 0.03125;
+        return whole;
+    }
+
+    private static String uuid(int index) {
+        return String.format("00000000-0000-0000-0000-%012d", index);
+    }
+
+}
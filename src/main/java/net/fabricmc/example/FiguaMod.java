@@ -1,12 +1,16 @@
 package net.fabricmc.example;
 
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.example.avatars.Avatar;
+import net.fabricmc.example.avatars.AvatarState;
 import net.fabricmc.example.lua.LuaManager;
+import net.fabricmc.example.lua.LuaTickScheduler;
 import net.fabricmc.example.management.AvatarStateManager;
 import net.fabricmc.example.management.cards.AvatarCard;
 import net.fabricmc.example.management.cards.CardDeck;
 import net.fabricmc.example.management.cards.LocalAvatarCard;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderEvents;
 import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.client.MinecraftClient;
 import org.apache.logging.log4j.LogManager;
@@ -15,6 +19,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 /**
  * The primary class of the mod. It initializes the mod for fabric,
@@ -26,6 +32,7 @@ public class FiguaMod implements ClientModInitializer {
 	public static final String MODID = "figua";
 	public static final Logger LOGGER = LogManager.getLogger(MODID);
 	public static final AvatarStateManager AVATAR_STATE_MANAGER = new AvatarStateManager();
+	public static final LuaTickScheduler LUA_TICK_SCHEDULER = new LuaTickScheduler();
 
 	@Override
 	public void onInitializeClient() {
@@ -33,7 +40,19 @@ public class FiguaMod implements ClientModInitializer {
 		LOGGER.info("Setting up Lua natives...");
 		LuaManager.setupLuaNatives();
 		LOGGER.info("Lua natives complete.");
+		//Build some LuaStates in the background now, so avatars don't have to wait for them later
+		LuaManager.startWarmStatePool();
 		ClientTickEvents.END_CLIENT_TICK.register(FiguaMod::tick);
+		//States are marked due while entities render. Once they're all done, the due states get posed
+		//in parallel and queued up with their avatars, and then each avatar draws all of its own together.
+		WorldRenderEvents.START.register(context -> {
+			AvatarState.clearDue();
+			Avatar.clearQueued();
+		});
+		WorldRenderEvents.AFTER_ENTITIES.register(context -> {
+			AvatarState.renderDue();
+			Avatar.renderQueued();
+		});
 	}
 
 	//TODO: make an actual tick function that isn't just for my purposes developing in single player
@@ -55,6 +74,31 @@ public class FiguaMod implements ClientModInitializer {
 		 * TEST
 		 * TEST
 		 */
+
+		//Scripts don't tick while the game is paused or there's no world, same as entities
+		if (minecraftClient.world != null && !minecraftClient.isPaused())
+			LUA_TICK_SCHEDULER.tick();
+	}
+
+	private static ForkJoinPool workerPool;
+
+	/**
+	 * Gets the pool used to spread work that's independent for every AvatarState, like posing
+	 * and script ticks, across cores. Created the first time it's needed.
+	 */
+	public static ForkJoinPool getWorkerPool() {
+		if (workerPool == null) {
+			//Leave a core for the thread handing out the work, which waits on it, and whatever else the game is doing
+			int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+			workerPool = new ForkJoinPool(threads, pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("Figua Worker " + thread.getPoolIndex());
+				//Otherwise the workers can't see mod classes through the context class loader
+				thread.setContextClassLoader(FiguaMod.class.getClassLoader());
+				return thread;
+			}, null, false);
+		}
+		return workerPool;
 	}
 
 	/**
@@ -1,15 +1,20 @@
 package net.fabricmc.example.avatars;
 
 import com.mojang.blaze3d.platform.GlStateManager;
-import net.fabricmc.example.math.Matrix4;
+import net.fabricmc.example.FiguaMod;
+import net.fabricmc.example.lua.LuaManager;
+import net.fabricmc.example.math.MutableMatrix4;
 import net.fabricmc.example.rendering.RenderUtils;
 import net.fabricmc.example.rendering.VAO;
 import net.fabricmc.example.rendering.textures.FiguaTexture;
+import net.fabricmc.example.rendering.textures.TransformTexture;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.nbt.NbtCompound;
+import org.lwjgl.BufferUtils;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -37,6 +42,23 @@ public class Avatar {
     //These are used for instantiating the avatar into an AvatarState.
     private NbtCompound modelNbt;
     private String luaSource;
+    //The script compiled once, for all the states to run, and whether that's been tried yet
+    private byte[] compiledScript;
+    private boolean scriptCompiled;
+
+    //Holds the transforms of every AvatarState of this avatar, each in its own slot.
+    //Sharing one texture lets all the states be drawn with a single instanced draw call.
+    private TransformTexture transforms;
+    private int transformsPerState;
+    private int slotCount;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    //Per-instance data for the states queued up to be drawn this frame
+    private ByteBuffer instanceData = BufferUtils.createByteBuffer(RenderUtils.instanceLayout().getBytesPerVertex() * 8);
+    private int queuedInstances;
+
+    //Every avatar with at least one instance queued up
+    private static final List<Avatar> QUEUED_AVATARS = new ArrayList<>();
 
     public boolean isReady() {
         return isReady;
@@ -60,10 +82,21 @@ public class Avatar {
     /**
      * Instantiates an AvatarState which uses this avatar.
      * @param owner The entity to which this state will be attached.
+     * @return The new state, or null if the transform texture has no room left for it.
      */
     private AvatarState instantiate(Entity owner) {
         if (!isReady) throw new IllegalStateException("Tried to instantiate avatar which was not yet ready!");
-        AvatarState newState = new AvatarState(this, modelNbt, luaSource, owner);
+        if (!scriptCompiled && luaSource != null)
+            //A script which doesn't compile is logged, and the avatar goes without one
+            compiledScript = LuaManager.compileSource(luaSource, "the avatar on " + owner.getEntityName());
+        scriptCompiled = true;
+        AvatarState newState;
+        try {
+            newState = new AvatarState(this, modelNbt, compiledScript, owner);
+        } catch (TransformsFullException e) {
+            FiguaMod.LOGGER.warn("Not rendering an avatar on " + owner.getEntityName() + ": " + e.getMessage());
+            return null;
+        }
         states.put(owner, newState);
         return newState;
     }
@@ -72,7 +105,7 @@ public class Avatar {
      * Gets the AvatarState for this entity, if it exists.
      * If it doesn't exist, then instantiates one for the entity and returns that.
      * @param e The entity to get an AvatarState for.
-     * @return The AvatarState.
+     * @return The AvatarState, or null if there wasn't room for one.
      */
     public AvatarState getStateFor(Entity e) {
         AvatarState state = states.get(e);
@@ -82,19 +115,116 @@ public class Avatar {
     }
 
     /**
-     * The rendering phase controlled by the avatar.
-     * Binds the regular Figua Texture, uploads the minecraft projection matrix, and draws the VAO.
+     * Reserves a slot in the shared transform texture for a new AvatarState.
+     * Replaces the texture with a bigger one if it's full.
+     * @param numTransforms The number of transforms each state needs. The same for every state of this avatar.
+     * @return The slot index, to be freed with freeTransformSlot() when the state closes.
+     * @throws TransformsFullException If the texture is already as big as it can get on this GPU, and has no free slots.
+     */
+    public int allocateTransformSlot(int numTransforms) {
+        //Free slots are always inside the current texture, so only a new one can need more room than there is
+        if (freeSlots.isEmpty() && (long) (slotCount + 1) * numTransforms > TransformTexture.maxCapacity())
+            throw new TransformsFullException("no room for another " + numTransforms + " transforms, the most this GPU allows is " + TransformTexture.maxCapacity());
+        transformsPerState = numTransforms;
+        int slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pop();
+        int needed = (slot + 1) * transformsPerState;
+        if (transforms == null || transforms.getCapacity() < needed) {
+            int newCapacity = needed;
+            if (transforms != null) {
+                newCapacity = Math.max(needed, Math.min(transforms.getCapacity() * 2, TransformTexture.maxCapacity()));
+                transforms.close();
+            }
+            transforms = TransformTexture.create(newCapacity);
+            //The new texture starts out empty, so the existing states need to upload everything again
+            for (AvatarState state : states.values())
+                state.forceTransformUpload();
+        }
+        return slot;
+    }
+
+    public void freeTransformSlot(int slot) {
+        freeSlots.push(slot);
+    }
+
+    /**
+     * Gets the index of the first transform in the given slot.
+     */
+    public int getTransformOffset(int slot) {
+        return slot * transformsPerState;
+    }
+
+    public TransformTexture getTransformTexture() {
+        return transforms;
+    }
+
+    /**
+     * Queues up an instance of this avatar to be drawn in renderQueued().
+     * @param modelView The modelview matrix of the instance.
+     * @param transformOffset Where the transforms of the instance begin in the transform texture.
      */
+    public void queueInstance(MutableMatrix4 modelView, int transformOffset) {
+        if (queuedInstances == 0)
+            QUEUED_AVATARS.add(this);
+        if (instanceData.remaining() < RenderUtils.instanceLayout().getBytesPerVertex()) {
+            ByteBuffer bigger = BufferUtils.createByteBuffer(instanceData.capacity() * 2);
+            instanceData.flip();
+            bigger.put(instanceData);
+            instanceData = bigger;
+        }
+        modelView.uploadToBuffer(instanceData);
+        instanceData.putInt(transformOffset);
+        queuedInstances++;
+    }
+
+    /**
+     * Draws every instance which was queued up since the last call, one draw call per avatar.
+     * Called once per frame, after the entities have been rendered.
+     */
+    public static void renderQueued() {
+        for (Avatar avatar : QUEUED_AVATARS)
+            avatar.render();
+        QUEUED_AVATARS.clear();
+        TransformTexture.endFrame();
+    }
+
+    /**
+     * Throws out anything queued without drawing it. Called at the start of each frame, so that
+     * entities rendered outside the world (like in the inventory) don't show up in it next frame.
+     */
+    public static void clearQueued() {
+        for (Avatar avatar : QUEUED_AVATARS) {
+            avatar.instanceData.clear();
+            avatar.queuedInstances = 0;
+        }
+        QUEUED_AVATARS.clear();
+    }
 
-    public void render() {
+    /**
+     * The rendering phase controlled by the avatar.
+     * Binds the regular Figua Texture and the transform texture, uploads the minecraft
+     * projection matrix, and draws the VAO once for every queued instance.
+     */
+    private void render() {
         //Enable depth testing
         GlStateManager._enableDepthTest();
+        //Use the shaders
+        RenderUtils.defaultFiguaShader().use();
         //Bind figua texture
         texture.bind(0);
+        //Upload whatever transforms changed this frame, then bind the shared transform texture to unit 1
+        transforms.flush();
+        transforms.bind(1);
         //Upload Projection Matrix
         RenderUtils.defaultFiguaShader().setUniform("ProjMat", RenderUtils.getMCProjectionMatrix());
+        //Upload the mesh bounds, for the compact vertex layout
+        RenderUtils.defaultFiguaShader().setUniform("PositionOffset", vao.getPositionOffset());
+        RenderUtils.defaultFiguaShader().setUniform("PositionScale", vao.getPositionScale());
         //Make draw call
-        vao.draw();
+        instanceData.flip();
+        vao.drawInstanced(instanceData, queuedInstances);
+        transforms.afterDraw();
+        instanceData.clear();
+        queuedInstances = 0;
         //Disable depth test again
         GlStateManager._disableDepthTest();
     }
@@ -102,6 +232,17 @@ public class Avatar {
     public void close() {
         vao.close();
         texture.close();
+        if (transforms != null)
+            transforms.close();
+    }
+
+    /**
+     * Thrown out of the AvatarState constructor when its transforms don't fit, so instantiate() can leave it out.
+     */
+    private static class TransformsFullException extends IllegalStateException {
+        private TransformsFullException(String message) {
+            super(message);
+        }
     }
 
 }
@@ -1,92 +1,214 @@
 package net.fabricmc.example.avatars;
 
+import net.fabricmc.example.FiguaMod;
 import net.fabricmc.example.lua.LuaManager;
+import net.fabricmc.example.lua.api.EventsApi;
+import net.fabricmc.example.lua.api.PoseApi;
 import net.fabricmc.example.management.deserializers.ModelPartDeserializer;
 import net.fabricmc.example.math.MathUtils;
-import net.fabricmc.example.math.Matrix4;
-import net.fabricmc.example.rendering.RenderUtils;
-import net.fabricmc.example.rendering.textures.TransformTexture;
+import net.fabricmc.example.math.MutableMatrix4;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.entity.Entity;
 import net.minecraft.nbt.NbtCompound;
+import org.terasology.jnlua.LuaException;
 import org.terasology.jnlua.LuaState;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
 public class AvatarState {
 
     private final Entity user;
     private final Avatar avatar;
     private final FiguaModelPart rootModelPart;
-    private final TransformTexture transforms;
+    //Poses the model parts every frame
+    private final CompiledPartTree partTree;
+    //Which slot of the avatar's shared transform texture this state's transforms go in
+    private final int transformSlot;
+    //Reused every frame, rather than making a new matrix each time
+    private final MutableMatrix4 modelView = new MutableMatrix4();
     private LuaState luaState;
+    //The events of luaState, kept so they can be invoked without looking them up every time
+    private EventsApi events;
+    //The pose table of luaState
+    private PoseApi pose;
+
+    //Whether this state is in DUE_STATES, and the tick delta it'll be posed with
+    private boolean due;
+    private float dueDelta;
+
+    //Every state which was rendered this frame, waiting to be posed and queued up in renderDue()
+    private static final List<AvatarState> DUE_STATES = new ArrayList<>();
 
-    public AvatarState(Avatar avatar, NbtCompound modelNbt, String luaSource, Entity entity) {
+    /**
+     * @param compiledScript The avatar's script, from LuaManager.compileSource(), or null if it has none.
+     */
+    public AvatarState(Avatar avatar, NbtCompound modelNbt, byte[] compiledScript, Entity entity) {
         this.user = entity;
         this.avatar = avatar;
         rootModelPart = new ModelPartDeserializer().deserialize(modelNbt);
-        transforms = new TransformTexture(rootModelPart.getLastChildTexIndex() + 1);
+        partTree = rootModelPart.getCompiledTree();
+        transformSlot = avatar.allocateTransformSlot(Math.max(partTree.getTransformCount(), 1));
+        //The slot might have been used by an old state before, so make sure ours overwrites all of it
+        partTree.forceUpload();
 
-        if (luaSource != null) {
-            luaState = LuaManager.createLuaState();
+        if (compiledScript != null) {
+            luaState = LuaManager.acquireLuaState();
+            events = EventsApi.get(luaState);
             rootModelPart.createAsGlobal(luaState, "model");
+            pose = new PoseApi(partTree.getPartCount());
+            pose.addTo(luaState);
             LuaManager.setupLog(luaState); //TODO: Only setup log if it's local or have the setting on
-            LuaManager.runSource(luaState, luaSource);
+            LuaManager.runCompiled(luaState, compiledScript, "the avatar on " + entity.getEntityName());
+            FiguaMod.LUA_TICK_SCHEDULER.add(this);
         }
     }
 
+    public Entity getUser() {
+        return user;
+    }
+
     public void luaTick() {
         if (luaState == null) return;
-        //Push events
-        luaState.getGlobal("events");
-        //Push events.tick
-        luaState.getField(-1, "tick");
-        //Push events.tick.invoke
-        luaState.getField(-1, "invoke");
-        //Push events.tick again
-        luaState.pushValue(-2);
-        //Call invoke, pop events.tick.invoke and events.tick
-        luaState.call(1, 0);
-        //Pop events.tick and events
-        luaState.pop(2);
+        events.getTick().invoke(luaState);
     }
 
     public void luaRender(float delta) {
-        //Largely the same as tick, just also pushes delta
         if (luaState == null) return;
-        //System.out.println(luaState.getTotalMemory() - luaState.getFreeMemory());
-        luaState.getGlobal("events");
-        luaState.getField(-1, "render");
-        luaState.getField(-1, "invoke");
-        luaState.pushValue(-2);
-        luaState.pushNumber(delta);
-        luaState.call(2, 0);
-        luaState.pop(2);
+        events.getRender().invoke(luaState, delta);
     }
 
     /**
-     * Renders this AvatarState with the given tick delta.
+     * Marks this AvatarState as due to render this frame. Nothing is done with it until renderDue(),
+     * once every entity has rendered, so that all the due states can be posed at the same time.
      * @param delta The proportion of a tick that has passed at the time this frame was rendered.
      */
-    public void render(float delta) {
-        luaRender(delta);
+    public void queueRender(float delta) {
+        dueDelta = delta;
+        if (!due) {
+            due = true;
+            DUE_STATES.add(this);
+        }
+    }
+
+    /**
+     * Runs the render event and works out the transforms and modelview matrix for this frame.
+     * Touches nothing but this state, its own slot of the transform texture, and its own LuaState,
+     * so different states can be posed on different threads.
+     * An error in the script is logged, and the state is still posed, just without what the script set this frame.
+     */
+    private void preparePose() {
+        try {
+            luaRender(dueDelta);
+            applyPose();
+        } catch (LuaException e) {
+            //Throwing would lose every other state posed alongside this one, and leave them all due
+            FiguaMod.LOGGER.error("Error in render event of " + user.getEntityName(), e);
+        }
         //Set up all model parts' transforms prior to rendering
-        rootModelPart.recursiveSetupPreRender(Matrix4.IDENTITY, false, transforms, null);
+        partTree.updateTransforms(avatar.getTransformTexture(), avatar.getTransformOffset(transformSlot));
+        //Set up the modelview matrix for the entity
+        MathUtils.entityToViewMatrix(user, dueDelta, modelView);
+    }
 
-        //Use the shaders
-        RenderUtils.defaultFiguaShader().use();
+    /**
+     * Applies everything set in the pose table since the last frame, all in one go rather than one call per part.
+     * The values go straight into the compiled tree by part index, without making any objects.
+     */
+    private void applyPose() {
+        if (pose == null) return;
+        ByteBuffer data = pose.flush(luaState);
+        if (data == null) return;
+        for (int o = 0; o + PoseApi.BYTES_PER_ENTRY <= data.limit(); o += PoseApi.BYTES_PER_ENTRY) {
+            int part = data.getInt(o);
+            int set = data.getInt(o + 4);
+            //Same units as FiguaModelPart: degrees become radians, and positions go from part space to world space
+            if ((set & PoseApi.ROT) != 0)
+                partTree.setRotation(part, (float) Math.toRadians(data.getFloat(o + 8)),
+                        (float) Math.toRadians(data.getFloat(o + 12)), (float) Math.toRadians(data.getFloat(o + 16)));
+            if ((set & PoseApi.POS) != 0)
+                partTree.setTranslation(part, MathUtils.partToWorld(data.getFloat(o + 20)),
+                        MathUtils.partToWorld(data.getFloat(o + 24)), MathUtils.partToWorld(data.getFloat(o + 28)));
+            if ((set & PoseApi.SCALE) != 0)
+                partTree.setScale(part, data.getFloat(o + 32), data.getFloat(o + 36), data.getFloat(o + 40));
+        }
+    }
 
-        //Set up the modelview matrix for the entity
-        Matrix4 modelView = MathUtils.entityToWorldMatrix(user, delta).multiply(MathUtils.worldToViewMatrix());
-        RenderUtils.defaultFiguaShader().setUniform("ModelViewMat", modelView);
+    /**
+     * Poses every state which was due this frame, spread across the worker pool, then queues them
+     * all up with their avatars on this thread. Called once per frame, after the entities have rendered.
+     * Every LuaState only belongs to one AvatarState, so each one is still only used by one thread at a time.
+     */
+    public static void renderDue() {
+        if (DUE_STATES.isEmpty()) return;
+        if (DUE_STATES.size() == 1)
+            DUE_STATES.get(0).preparePose();
+        else
+            FiguaMod.getWorkerPool().invoke(new PoseTask(DUE_STATES, 0, DUE_STATES.size()));
+
+        //Avatars aren't thread safe, so this part stays on the render thread
+        for (AvatarState state : DUE_STATES) {
+            //The avatar draws all its queued states together later on
+            state.avatar.queueInstance(state.modelView, state.avatar.getTransformOffset(state.transformSlot));
+            state.due = false;
+        }
+        DUE_STATES.clear();
+    }
 
-        //Bind our transform texture to unit 1
-        transforms.bind(1);
-        //Render the avatar itself
-        avatar.render();
+    /**
+     * Forgets every due state without posing it. Called at the start of each frame,
+     * for the same reason as Avatar.clearQueued().
+     */
+    public static void clearDue() {
+        for (AvatarState state : DUE_STATES)
+            state.due = false;
+        DUE_STATES.clear();
+    }
+
+    /**
+     * Poses a range of states, splitting it in half until there's one state per task.
+     * Each state is usually plenty of work by itself, between its render event and its parts.
+     */
+    private static class PoseTask extends RecursiveAction {
+
+        private final List<AvatarState> states;
+        private final int from, to;
+
+        private PoseTask(List<AvatarState> states, int from, int to) {
+            this.states = states;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                states.get(from).preparePose();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PoseTask(states, from, mid), new PoseTask(states, mid, to));
+        }
+
+    }
+
+    /**
+     * Makes this state upload all its transforms again on the next render.
+     * Called when the avatar replaces its transform texture.
+     */
+    public void forceTransformUpload() {
+        partTree.forceUpload();
     }
 
     public void close() {
-        transforms.close();
-        luaState.close();
+        avatar.freeTransformSlot(transformSlot);
+        //No LuaState if the avatar has no script, or its script didn't compile
+        if (luaState != null) {
+            FiguaMod.LUA_TICK_SCHEDULER.remove(this);
+            luaState.close();
+        }
     }
 
 }
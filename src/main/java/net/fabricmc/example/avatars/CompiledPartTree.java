@@ -0,0 +1,313 @@
+package net.fabricmc.example.avatars;
+
+import net.fabricmc.example.math.AffineBatchKernel;
+import net.fabricmc.example.math.Matrix4;
+import net.fabricmc.example.math.MutableMatrix4;
+import net.fabricmc.example.math.Vector3;
+import net.fabricmc.example.rendering.textures.TransformTexture;
+
+import java.util.Arrays;
+
+/**
+ * A flattened copy of a tree of FiguaModelParts, which is what actually gets posed every frame.
+ * The FiguaModelParts are what Lua sees, and they pass any changes on to here.
+ *
+ * Parts are stored in depth-first order, the same order they were constructed in, so every
+ * part comes after its parent. That means one loop from start to end visits parents before
+ * their children, with no recursion. Everything is kept in flat primitive arrays, indexed by
+ * part, and the pose update doesn't allocate anything.
+ *
+ * Changes mark every ancestor of the changed part as having a dirty subtree. The update skips
+ * straight past any subtree which is clean, reusing the world matrices it worked out before,
+ * so an avatar which isn't moving costs next to nothing.
+ *
+ * The parts whose world matrices need recalculating are sorted into batches by depth. No part in
+ * a depth level depends on another one in it, so each level is composed in one call to an
+ * AffineBatchKernel, which uses SIMD where it can.
+ *
+ * Matrices are affine, stored as their top 3 rows (12 floats). The bottom row is always 0, 0, 0, 1.
+ */
+public class CompiledPartTree {
+
+    private static final int MATRIX_STRIDE = 12;
+
+    //Flags for each part
+    private static final byte NEEDS_COMPOSE = 1; //The local matrix needs to be rebuilt from pivot, rotation, translation and scale
+    private static final byte LOCAL_CHANGED = 2; //The local matrix changed, so this part and all its descendants need new world matrices
+    private static final byte SUBTREE_DIRTY = 4; //This part or one of its descendants has one of the flags above
+
+    private final int size;
+    //Index of each part's parent, or -1 for the root
+    private final int[] parents;
+    //Index just past the last descendant of each part, so skipping a whole subtree is one jump
+    private final int[] subtreeEnds;
+    //How many ancestors each part has, 0 for the root
+    private final int[] depths;
+    //Index of each part's transform in the TransformTexture, or -1 for groups, which have no vertex data
+    private final int[] texIndices;
+    private final int transformCount;
+
+    //Local transform values, 3 floats per part. Rotations are in radians, pivots in world space.
+    private final float[] pivots;
+    private final float[] rotations;
+    private final float[] translations;
+    private final float[] scales;
+
+    //Transforms relative to the parent, and relative to the root
+    private final float[] localMatrices;
+    private final float[] worldMatrices;
+
+    private final byte[] flags;
+    //Whether each part's world matrix changed in the current update
+    private final boolean[] worldChanged;
+
+    //The parts to compose in the current update, grouped by depth. Depth d gets the slots from
+    //levelStarts[d] to levelStarts[d + 1], which is enough room for every part at that depth.
+    //Stored as offsets into the matrix arrays, which is what the kernel wants.
+    private final int[] levelStarts;
+    private final int[] levelCounts;
+    private final int[] batchOffsets;
+    private final int[] batchParentOffsets;
+    private final AffineBatchKernel kernel = AffineBatchKernel.get();
+    //For building local matrices. Only one thread updates a tree at a time, so it can be shared by every part.
+    private final MutableMatrix4 composeScratch = new MutableMatrix4();
+
+    /**
+     * @param parts Every part in the tree, in depth-first order. The root has to be first.
+     */
+    CompiledPartTree(FiguaModelPart[] parts) {
+        size = parts.length;
+        parents = new int[size];
+        subtreeEnds = new int[size];
+        depths = new int[size];
+        texIndices = new int[size];
+        pivots = new float[size * 3];
+        rotations = new float[size * 3];
+        translations = new float[size * 3];
+        scales = new float[size * 3];
+        localMatrices = new float[size * MATRIX_STRIDE];
+        worldMatrices = new float[size * MATRIX_STRIDE];
+        flags = new byte[size];
+        worldChanged = new boolean[size];
+
+        int maxTexIndex = -1;
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            parents[i] = parts[i].getParentIndex();
+            if (parents[i] >= i)
+                throw new IllegalArgumentException("Model parts must come after their parent");
+            depths[i] = parents[i] < 0 ? 0 : depths[parents[i]] + 1;
+            maxDepth = Math.max(maxDepth, depths[i]);
+            texIndices[i] = parts[i].getTexIndex();
+            maxTexIndex = Math.max(maxTexIndex, texIndices[i]);
+            scales[i * 3] = scales[i * 3 + 1] = scales[i * 3 + 2] = 1;
+            flags[i] = NEEDS_COMPOSE | LOCAL_CHANGED | SUBTREE_DIRTY;
+            subtreeEnds[i] = i + 1;
+        }
+        transformCount = maxTexIndex + 1;
+        //Children come after their parents, so going backwards sees every descendant before its ancestors
+        for (int i = size - 1; i > 0; i--)
+            subtreeEnds[parents[i]] = Math.max(subtreeEnds[parents[i]], subtreeEnds[i]);
+
+        levelStarts = new int[maxDepth + 2];
+        levelCounts = new int[maxDepth + 1];
+        for (int i = 0; i < size; i++)
+            levelStarts[depths[i] + 1]++;
+        for (int d = 1; d < levelStarts.length; d++)
+            levelStarts[d] += levelStarts[d - 1];
+        batchOffsets = new int[size];
+        batchParentOffsets = new int[size];
+    }
+
+    /**
+     * The number of parts in this tree.
+     */
+    public int getPartCount() {
+        return size;
+    }
+
+    /**
+     * The number of transforms this tree writes to the TransformTexture.
+     */
+    public int getTransformCount() {
+        return transformCount;
+    }
+
+    /**
+     * Sets the local transform of a part from its pivot, rotation, translation and scale.
+     */
+    void setTRS(int part, Vector3 pivot, Vector3 rotation, Vector3 translation, Vector3 scale) {
+        put(pivots, part, pivot);
+        put(rotations, part, rotation);
+        put(translations, part, translation);
+        put(scales, part, scale);
+        flags[part] |= NEEDS_COMPOSE | LOCAL_CHANGED;
+        markSubtreeDirty(part);
+    }
+
+    /**
+     * Sets the rotation of a part, in radians, leaving the rest of its transform as it is.
+     */
+    void setRotation(int part, float x, float y, float z) {
+        setValue(rotations, part, x, y, z);
+    }
+
+    /**
+     * Sets the translation of a part, in world space, leaving the rest of its transform as it is.
+     */
+    void setTranslation(int part, float x, float y, float z) {
+        setValue(translations, part, x, y, z);
+    }
+
+    /**
+     * Sets the scale of a part, leaving the rest of its transform as it is.
+     */
+    void setScale(int part, float x, float y, float z) {
+        setValue(scales, part, x, y, z);
+    }
+
+    /**
+     * Sets the pivot of a part, in world space, leaving the rest of its transform as it is.
+     */
+    void setPivot(int part, float x, float y, float z) {
+        setValue(pivots, part, x, y, z);
+    }
+
+    /**
+     * Sets the local transform of a part directly. Only the top 3 rows of the matrix are used.
+     * Resets its rotation, translation and scale, like FiguaModelPart.setTransform(), so setting one
+     * of them afterwards builds the matrix from those again.
+     */
+    void setLocalMatrix(int part, Matrix4 m) {
+        int v = part * 3;
+        rotations[v] = rotations[v + 1] = rotations[v + 2] = 0;
+        translations[v] = translations[v + 1] = translations[v + 2] = 0;
+        scales[v] = scales[v + 1] = scales[v + 2] = 1;
+        int o = part * MATRIX_STRIDE;
+        float[] l = localMatrices;
+        l[o] = (float) m.a11(); l[o + 1] = (float) m.a12(); l[o + 2] = (float) m.a13(); l[o + 3] = (float) m.a14();
+        l[o + 4] = (float) m.a21(); l[o + 5] = (float) m.a22(); l[o + 6] = (float) m.a23(); l[o + 7] = (float) m.a24();
+        l[o + 8] = (float) m.a31(); l[o + 9] = (float) m.a32(); l[o + 10] = (float) m.a33(); l[o + 11] = (float) m.a34();
+        flags[part] = (byte) ((flags[part] & ~NEEDS_COMPOSE) | LOCAL_CHANGED);
+        markSubtreeDirty(part);
+    }
+
+    /**
+     * Marks the subtrees of a part and all its ancestors as dirty, so the next update goes down to it.
+     * Stops early at an ancestor which was already marked, since everything above it is marked too.
+     */
+    private void markSubtreeDirty(int part) {
+        while (part >= 0 && (flags[part] & SUBTREE_DIRTY) == 0) {
+            flags[part] |= SUBTREE_DIRTY;
+            part = parents[part];
+        }
+    }
+
+    /**
+     * Makes every part upload its transform again on the next update, even if it hasn't changed.
+     * Needed when the texture they're stored in gets replaced, or the slot was used by someone else before.
+     */
+    public void forceUpload() {
+        //Everything is a descendant of the root
+        flags[0] |= LOCAL_CHANGED | SUBTREE_DIRTY;
+    }
+
+    /**
+     * Recalculates the world matrix of every part which changed since the last update,
+     * and writes the ones with vertex data into the TransformTexture.
+     * Different trees can be updated on different threads at the same time, even when they share a
+     * TransformTexture, as long as their transforms are in different parts of it. One tree can't.
+     * @param texOffset Added to every texture index, for when the texture is shared between many trees.
+     */
+    public void updateTransforms(TransformTexture tfTex, int texOffset) {
+        //Nothing changed anywhere
+        if ((flags[0] & SUBTREE_DIRTY) == 0)
+            return;
+        Arrays.fill(levelCounts, 0);
+        //Range of texture indices written, marked dirty all at once at the end
+        int firstWritten = Integer.MAX_VALUE, lastWritten = -1;
+        int i = 0;
+        while (i < size) {
+            byte f = flags[i];
+            int parent = parents[i];
+            boolean parentChanged = parent >= 0 && worldChanged[parent];
+            //Nothing in here changed, and neither did anything above it, so the old world matrices are still right
+            if ((f & SUBTREE_DIRTY) == 0 && !parentChanged) {
+                i = subtreeEnds[i];
+                continue;
+            }
+            if ((f & NEEDS_COMPOSE) != 0)
+                composeLocal(i);
+            boolean changed = (f & LOCAL_CHANGED) != 0 || parentChanged;
+            worldChanged[i] = changed;
+            flags[i] = 0;
+            if (!changed) {
+                i++;
+                continue;
+            }
+
+            if (parent < 0) {
+                //The root has nothing to be composed with, so it's done right away
+                System.arraycopy(localMatrices, i * MATRIX_STRIDE, worldMatrices, i * MATRIX_STRIDE, MATRIX_STRIDE);
+                if (texIndices[i] >= 0) {
+                    tfTex.writeTransform(texIndices[i] + texOffset, worldMatrices, i * MATRIX_STRIDE);
+                    firstWritten = lastWritten = texIndices[i];
+                }
+            } else {
+                int slot = levelStarts[depths[i]] + levelCounts[depths[i]]++;
+                batchOffsets[slot] = i * MATRIX_STRIDE;
+                batchParentOffsets[slot] = parent * MATRIX_STRIDE;
+            }
+            i++;
+        }
+
+        //Each level only needs the one above it to be finished
+        for (int d = 1; d < levelCounts.length; d++) {
+            int start = levelStarts[d];
+            int end = start + levelCounts[d];
+            kernel.compose(worldMatrices, localMatrices, batchOffsets, batchParentOffsets, start, end);
+            for (int slot = start; slot < end; slot++) {
+                int part = batchOffsets[slot] / MATRIX_STRIDE;
+                int texIndex = texIndices[part];
+                if (texIndex >= 0) {
+                    tfTex.writeTransform(texIndex + texOffset, worldMatrices, batchOffsets[slot]);
+                    firstWritten = Math.min(firstWritten, texIndex);
+                    lastWritten = Math.max(lastWritten, texIndex);
+                }
+            }
+        }
+        //One call rather than one per part, since trees can be updated on several threads sharing a texture
+        if (lastWritten >= 0)
+            tfTex.markDirty(firstWritten + texOffset, lastWritten + texOffset);
+    }
+
+    /**
+     * Builds the local matrix of a part from its pivot, rotation, translation and scale.
+     * Same as translate(-pivot), then scale, then rotate Z, Y and X, then translate(translation + pivot).
+     */
+    private void composeLocal(int part) {
+        int v = part * 3;
+        float px = pivots[v], py = pivots[v + 1], pz = pivots[v + 2];
+        composeScratch
+                .setTRS(translations[v] + px, translations[v + 1] + py, translations[v + 2] + pz,
+                        rotations[v], rotations[v + 1], rotations[v + 2],
+                        scales[v], scales[v + 1], scales[v + 2])
+                .preTranslate(-px, -py, -pz)
+                .writeAffineRows(localMatrices, part * MATRIX_STRIDE);
+    }
+
+    private void setValue(float[] array, int part, float x, float y, float z) {
+        array[part * 3] = x;
+        array[part * 3 + 1] = y;
+        array[part * 3 + 2] = z;
+        flags[part] |= NEEDS_COMPOSE | LOCAL_CHANGED;
+        markSubtreeDirty(part);
+    }
+
+    private static void put(float[] array, int part, Vector3 value) {
+        array[part * 3] = (float) value.x();
+        array[part * 3 + 1] = (float) value.y();
+        array[part * 3 + 2] = (float) value.z();
+    }
+
+}
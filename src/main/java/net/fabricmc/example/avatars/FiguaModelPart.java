@@ -1,20 +1,18 @@
 package net.fabricmc.example.avatars;
 
+import net.fabricmc.example.lua.api.VectorsApi;
 import net.fabricmc.example.math.MathUtils;
 import net.fabricmc.example.math.Matrix4;
 import net.fabricmc.example.math.Vector3;
 import net.fabricmc.example.math.Vector4;
-import net.fabricmc.example.rendering.textures.TransformTexture;
-import org.lwjgl.BufferUtils;
 import org.terasology.jnlua.JavaFunction;
 import org.terasology.jnlua.LuaRuntimeException;
 import org.terasology.jnlua.LuaState;
-import org.terasology.jnlua.LuaType;
 
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 public class FiguaModelPart {
 
@@ -22,12 +20,9 @@ public class FiguaModelPart {
     private final int luaIndex;
 
     /**
-     * This array contains all of the FiguaModelParts in
-     * the same tree as this one. It's built using the
-     * static ArrayList, and when you reset the build tree
-     * it's copied to the array for all the parts.
+     * All of the FiguaModelParts built since the last
+     * time the build tree was reset, in construction order.
      */
-    private FiguaModelPart[] treeElements;
     private static ArrayList<FiguaModelPart> currentElements = new ArrayList<>();
 
     /**
@@ -42,7 +37,7 @@ public class FiguaModelPart {
 
     /**
      * These indices are used for sending data to the TransformTexture.
-     * Minimizes the number of calls to glTexSubImage2d.
+     * For a part with vertex data, both are its own index. For a group, they're the range its children cover.
      */
     private static int currentTexIndex;
     private int firstChildTexIndex;
@@ -53,22 +48,25 @@ public class FiguaModelPart {
      */
     private final boolean hasVertexData;
 
+    /**
+     * The flattened tree which does the actual posing every frame. This part is the
+     * entry at luaIndex in it. Null until resetBuildTree() is called.
+     */
+    private CompiledPartTree compiledTree;
+
     /**
      * There are 2 ways for users to modify the transform.
      * They can directly set the value of the matrix4:
      * - Resets rotation, translation, and scale (not pivot) to default values.
      * They can use commands like setRot(), setPos(), etc.
      * - Set pivot, rotation, translation, or scale.
-     * - Sets needsTransformUpdate to true.
-     * Doing either will set needsTextureUpdate to true.
-     * Every frame, if needsTextureUpdate is true:
-     * - If not direct mode, update the transform based on pivot, rot, scale, pos.
-     * Upload the transform at my index.
+     * - Goes back to building the transform from those, if it was set directly before.
+     * Either way, the new transform is passed on to the compiled tree, which works
+     * out the world transforms and uploads them on the next render.
+     * These fields only hold the transform until the tree is built. After that the tree has the current values,
+     * since the pose table writes into it directly, and changes here only pass on what they set.
      */
-    private boolean needsTextureUpdate;
-    private boolean needsTransformUpdate;
-
-    private Matrix4 transform;
+    private Matrix4 transform; //Null unless the transform was set directly
     private Vector3 pivot;
     private Vector3 rotation;
     private Vector3 translation;
@@ -105,10 +103,6 @@ public class FiguaModelPart {
         translation = Vector3.ZERO;
         scale = Vector3.ONE;
         color = Vector4.ONE;
-        transform = Matrix4.IDENTITY;
-
-        needsTextureUpdate = false;
-        needsTransformUpdate = false;
 
         setRot(rot);
         setPivot(pivot);
@@ -137,53 +131,50 @@ public class FiguaModelPart {
 
     /**
      * Call this after all new FiguaModelParts are constructed, and all desired addChild calls are complete.
+     * Parts have to be constructed parent first, like ModelPartDeserializer does, since the
+     * compiled tree relies on that order.
      */
     public static void resetBuildTree() {
         currentTexIndex = 0;
         FiguaModelPart[] localArr = currentElements.toArray(new FiguaModelPart[currentElements.size()]);
-        for (FiguaModelPart part : currentElements)
-            part.treeElements = localArr;
+        CompiledPartTree tree = new CompiledPartTree(localArr);
+        for (FiguaModelPart part : currentElements) {
+            part.compiledTree = tree;
+            part.updateCompiledTree();
+        }
         currentElements = new ArrayList<>();
     }
 
     /**
-     * Recursive method which gets everything ready before rendering.
-     * Collects model parts' transformations as it traverses the tree,
-     * determines which contiguous blocks of texture to upload to, and
-     * uploads them to the transformation texture without too many
-     * glSubTexImage2D calls.
+     * Gets the compiled tree this part belongs to, which poses it and all the other parts of the tree.
      */
-    public void recursiveSetupPreRender(Matrix4 parentTransform, boolean parentNeededUpdate, TransformTexture tfTex, FloatBuffer buf) {
-        if (needsTransformUpdate) {
-            updateTransformTRS();
-            needsTransformUpdate = false;
-        }
-        //parentTransform = parentTransform.multiply(transform);
-        parentTransform = transform.multiply(parentTransform);
-
-        boolean collector = needsTextureUpdate && !parentNeededUpdate && (firstChildTexIndex <= lastChildTexIndex);
-        if (collector)
-            buf = BufferUtils.createFloatBuffer((lastChildTexIndex - firstChildTexIndex + 1) * 16);
-
-        if (hasVertexData && buf != null)
-            parentTransform.uploadToBuffer(buf);
-
-        if (children != null)
-            for (FiguaModelPart child : children)
-                child.recursiveSetupPreRender(parentTransform, needsTextureUpdate || parentNeededUpdate, tfTex, buf);
+    public CompiledPartTree getCompiledTree() {
+        return compiledTree;
+    }
 
-        if (collector) {
-            buf.flip();
-            tfTex.uploadData(firstChildTexIndex, lastChildTexIndex, buf);
-        }
+    int getParentIndex() {
+        return parent == null ? -1 : parent.luaIndex;
+    }
 
-        needsTextureUpdate = false;
+    int getTexIndex() {
+        return hasVertexData ? firstChildTexIndex : -1;
     }
 
     public int getLastChildTexIndex() {
         return lastChildTexIndex;
     }
 
+    /**
+     * Passes this part's transform on to the compiled tree.
+     */
+    private void updateCompiledTree() {
+        if (compiledTree == null) return;
+        if (transform != null)
+            compiledTree.setLocalMatrix(luaIndex, transform);
+        else
+            compiledTree.setTRS(luaIndex, pivot, rotation, translation, scale);
+    }
+
     /**
      * Updates transform by setting it to the provided matrix.
      * Resets rotation, translation, and scale to default values.
@@ -195,24 +186,8 @@ public class FiguaModelPart {
         translation = Vector3.ZERO;
         scale = Vector3.ONE;
         transform = newTransform;
-        needsTextureUpdate = true;
-    }
-
-
-    /**
-     * Updates transform based on current values of pivot, rotation, translation, and scale.
-     * Goes in TRS order, that is:
-     * - Scales
-     * - Rotates
-     * - Translates
-     */
-    private void updateTransformTRS() {
-        transform = Matrix4.translate(pivot.scale(-1))
-                .multiply(Matrix4.scale(scale))
-                .multiply(Matrix4.rotateZ(rotation.z())) //I think it's ZYX? Will confirm
-                .multiply(Matrix4.rotateY(rotation.y()))
-                .multiply(Matrix4.rotateX(rotation.x()))
-                .multiply(Matrix4.translate(translation.add(pivot)));
+        //Replaces the whole transform, so passing every field on is right here
+        updateCompiledTree();
     }
 
     /**
@@ -222,8 +197,9 @@ public class FiguaModelPart {
      */
     public void setRot(Vector3 newRot) {
         rotation = newRot.toRad();
-        needsTextureUpdate = true;
-        needsTransformUpdate = true;
+        transform = null;
+        if (compiledTree != null)
+            compiledTree.setRotation(luaIndex, (float) rotation.x(), (float) rotation.y(), (float) rotation.z());
     }
 
     /**
@@ -233,8 +209,9 @@ public class FiguaModelPart {
      */
     public void setPivot(Vector3 newPivot) {
         pivot = MathUtils.partToWorld(newPivot);
-        needsTextureUpdate = true;
-        needsTransformUpdate = true;
+        transform = null;
+        if (compiledTree != null)
+            compiledTree.setPivot(luaIndex, (float) pivot.x(), (float) pivot.y(), (float) pivot.z());
     }
 
     /*
@@ -247,9 +224,11 @@ public class FiguaModelPart {
      *
      */
 
-    private static final String ROOT_MODELPART_KEY = "ROOT_MODELPART_KEY";
-    private static final String TEMP_GLOBAL_METATABLE = "MODELPART_TEMP_GLOBAL_METATABLE_LOCATION";
-    private static final String RESERVED_INDEX_KEY = "FIGUA_RESERVED_INDEX_KEY";
+    //Makes the find() function of each part, which looks parts up by their path from the root, like "body.head".
+    //The paths table is made once per tree, and each part's find() adds its own path to the front.
+    private static final String FIND_FACTORY_SOURCE =
+            "local paths = ... " +
+            "return function(prefix) return function(self, path) return paths[prefix .. path] end end";
 
     /**
      * Creates a table for this entire model part, and sets it to a
@@ -257,55 +236,57 @@ public class FiguaModelPart {
      * Also handles all metatable business.
      */
     public void createAsGlobal(LuaState luaState, String globalName) {
-        pushModelPartMetatable(luaState); //Push metatable
-        luaState.setGlobal(TEMP_GLOBAL_METATABLE); //Set it as a temporary global variable
-
-        //Push the root model part into the registry, so no one else can access it
-        luaState.pushJavaObject(this);
-        luaState.setField(luaState.REGISTRYINDEX, ROOT_MODELPART_KEY);
-
-        pushTable(luaState); //Push my table on the stack
+        //Push the table of paths, which every part's table gets added to
+        luaState.newTable();
+        int pathsIndex = luaState.getTop();
+        //Push the find() factory, with the paths table as its upvalue
+        luaState.load(FIND_FACTORY_SOURCE, "=model.find");
+        luaState.pushValue(pathsIndex);
+        luaState.call(1, 1);
+        int findFactoryIndex = luaState.getTop();
+
+        pushTable(luaState, "", pathsIndex, findFactoryIndex); //Push my table on the stack
         luaState.setGlobal(globalName); //Pop it and make global
 
-        luaState.pushNil(); //Push nil on the stack
-        luaState.setGlobal(TEMP_GLOBAL_METATABLE); //Set temporary global var back to nil
+        //Pop the factory and the paths table
+        luaState.pop(2);
     }
 
     /**
      * Creates a table for this model part and pushes it onto the stack.
      * @param luaState The state to create the part in.
+     * @param path The path of this part from the root, "" for the root itself.
+     * @param pathsIndex Where the table of paths is on the stack.
+     * @param findFactoryIndex Where the find() factory is on the stack.
      */
-    private void pushTable(LuaState luaState) {
+    private void pushTable(LuaState luaState, String path, int pathsIndex, int findFactoryIndex) {
         //Generate a new table, this will be the table for this part.
         luaState.newTable();
         //Iterate over each child
         if (children != null)
             for (FiguaModelPart child : children) {
                 //Create that child's table and put it on the stack.
-                child.pushTable(luaState);
+                child.pushTable(luaState, path.isEmpty() ? child.name : path + "." + child.name, pathsIndex, findFactoryIndex);
                 //Add that child to our table we just created, using the child's name as the key.
                 luaState.setField(-2, child.name);
             }
-        //Push the lua index for this part onto the stack
-        luaState.pushInteger(luaIndex);
-        //And add it to the table under a certain name. Hopefully no one names a model part
-        //with this name, or else they won't be able to find it :(
-        luaState.setField(-2, RESERVED_INDEX_KEY);
 
-        //Get the metatable and put on top of the stack
-        luaState.getGlobal(TEMP_GLOBAL_METATABLE);
+        //Make the metatable, with functions which already know which part they're for
+        pushModelPartMetatable(luaState, path.isEmpty() ? "" : path + ".", findFactoryIndex);
         //Set that metatable as the metatable for our table we just created
         luaState.setMetatable(-2);
+
+        //Remember this table's path, for find()
+        luaState.pushValue(-1);
+        luaState.setField(pathsIndex, path);
     }
 
-    private static void pushModelPartMetatable(LuaState luaState) {
+    private void pushModelPartMetatable(LuaState luaState, String findPrefix, int findFactoryIndex) {
         //Create new table to be the metatable
         luaState.newTable(); //"metatable"
 
         //__newindex behavior: prohibit it
-        luaState.pushJavaFunction(state -> {
-            throw new LuaRuntimeException("Cannot edit model part tables!");
-        });
+        luaState.pushJavaFunction(PROHIBIT_NEWINDEX);
         luaState.setField(-2, "__newindex");
 
         //Hide this metatable
@@ -314,19 +295,17 @@ public class FiguaModelPart {
 
         //Implement tostring()
         //TODO: actually implement it well lol
-        luaState.pushJavaFunction(state -> {
-            luaState.pushString("[Model Part Table]");
-            return 1;
-        });
+        luaState.pushJavaFunction(TO_STRING);
         luaState.setField(-2, "__tostring");
 
         //Create additional table to use as value for __index
-        //This table will hold all of our functions for model parts
+        //This table will hold all of our functions for this model part
         luaState.newTable(); //"index table"
 
-        for (Map.Entry<String, JavaFunction> entry : luaFunctions.entrySet()) {
+        for (Map.Entry<String, Function<FiguaModelPart, JavaFunction>> entry : luaFunctions.entrySet()) {
             String functionName = entry.getKey();
-            JavaFunction function = entry.getValue();
+            //Bind the function to this part, so it doesn't need to look up which part it was called on
+            JavaFunction function = entry.getValue().apply(this);
 
             //Push our java function onto the stack
             luaState.pushJavaFunction(function);
@@ -334,51 +313,39 @@ public class FiguaModelPart {
             luaState.setField(-2, functionName);
         }
 
+        //The index of this part, for the pose table
+        luaState.pushInteger(luaIndex);
+        luaState.setField(-2, "index");
+
+        //find(), which is made in Lua so looking up a path never goes through Java
+        luaState.pushValue(findFactoryIndex);
+        luaState.pushString(findPrefix);
+        luaState.call(1, 1);
+        luaState.setField(-2, "find");
+
         //Pop our "index table" off the stack and put it into "metatable", with key "__index"
         luaState.setField(-2, "__index");
     }
 
-    private static final Map<String, JavaFunction> luaFunctions = new HashMap<>() {{
-        put("setRot", luaState -> {
-            //Ensure argument 2 is a Vector3
-            Vector3 newRot = luaState.checkJavaObject(2, Vector3.class);
-            FiguaModelPart toModify = getModelPart(luaState);
-            toModify.setRot(newRot);
-            return 0;
-        });
-    }};
+    private static final JavaFunction PROHIBIT_NEWINDEX = state -> {
+        throw new LuaRuntimeException("Cannot edit model part tables!");
+    };
+
+    private static final JavaFunction TO_STRING = state -> {
+        state.pushString("[Model Part Table]");
+        return 1;
+    };
 
     /**
-     * Gets the FiguaModelPart which is referenced by a table
-     * at position 1 on the stack. Returns the stack in the
-     * same configuration as when it started.
-     *
-     * This is a helper function for many methods in the luaFunctions
-     * map, since pretty much all of them kinda need to do this.
-     *
-     * @param luaState The LuaState to get the model part from.
-     * @return The FiguaModelPart the table refers to.
+     * The functions every model part table has. Each one is made per part, with the part it's for,
+     * so calling it goes straight to the part without looking anything up.
      */
-    private static FiguaModelPart getModelPart(LuaState luaState) {
-        //Ensure argument 1 is in fact a table
-        luaState.checkType(1, LuaType.TABLE);
-        //Push key
-        luaState.pushString(RESERVED_INDEX_KEY);
-        //Pop key, push luaIndex
-        luaState.rawGet(1);
-        //Get index java side
-        int index = (int) luaState.checkInteger(-1);
-        //Pop luaIndex
-        luaState.pop(1);
-
-        //Get registry-held userdata for root part
-        luaState.getField(luaState.REGISTRYINDEX, ROOT_MODELPART_KEY);
-        //Save it in local var
-        FiguaModelPart rootPart = luaState.checkJavaObject(-1, FiguaModelPart.class);
-        //Pop userdata
-        luaState.pop(1);
-
-        return rootPart.treeElements[index];
-    }
+    private static final Map<String, Function<FiguaModelPart, JavaFunction>> luaFunctions = new HashMap<>() {{
+        put("setRot", part -> luaState -> {
+            //Ensure argument 2 is a vec3
+            part.setRot(VectorsApi.checkVector3(luaState, 2));
+            return 0;
+        });
+    }};
 
 }
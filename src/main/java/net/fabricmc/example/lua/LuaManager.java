@@ -8,16 +8,64 @@ import org.terasology.jnlua.LuaState;
 import org.terasology.jnlua.LuaState53;
 import org.terasology.jnlua.NativeSupport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class LuaManager {
 
     private static final int MEMORY_LIMIT = 1000000; //1 MB
 
+    //How many ready-made LuaStates to keep around for new AvatarStates
+    private static final int WARM_STATE_COUNT = 8;
+    private static final BlockingQueue<LuaState> WARM_STATES = new ArrayBlockingQueue<>(WARM_STATE_COUNT);
+    private static Thread warmStateBuilder;
+
+    /**
+     * Starts a background thread which keeps WARM_STATE_COUNT LuaStates built ahead of time, and builds
+     * more whenever acquireLuaState() takes one. Lua natives have to be set up first.
+     */
+    public static void startWarmStatePool() {
+        if (warmStateBuilder != null) return;
+        warmStateBuilder = new Thread(() -> {
+            try {
+                //Blocks while the pool is full
+                while (true)
+                    WARM_STATES.put(createLuaState());
+            } catch (InterruptedException e) {
+                //Nothing to do, the game is closing
+            } catch (RuntimeException e) {
+                //acquireLuaState() still works without the pool, it's just slower
+                FiguaMod.LOGGER.error("Stopped building LuaStates ahead of time", e);
+            }
+        }, "Figua LuaState Builder");
+        warmStateBuilder.setDaemon(true);
+        warmStateBuilder.start();
+    }
+
+    /**
+     * Gets a new LuaState, set up the same as createLuaState() does. Takes one that was built ahead of
+     * time if there is one, so all that's left for the caller is adding its own globals and running its script.
+     * Falls back to building one right away when a lot of states were asked for at once and the pool ran dry.
+     */
+    public static LuaState acquireLuaState() {
+        LuaState state = WARM_STATES.poll();
+        return state != null ? state : createLuaState();
+    }
+
     public static LuaState createLuaState() {
         LuaState luaState = new LuaState53(MEMORY_LIMIT);
 
@@ -41,6 +89,117 @@ public class LuaManager {
         return luaState;
     }
 
+    //Compiled scripts, by the SHA-256 of their source
+    private static final Map<String, byte[]> COMPILED_CHUNKS = new ConcurrentHashMap<>();
+    //Whether compiled scripts are also saved in the figua folder, so they don't need compiling again next launch.
+    //Off for now, since Lua doesn't check binary chunks at all, and a changed file could get out of the sandbox.
+    private static final boolean PERSIST_COMPILED_CHUNKS = false;
+
+    /**
+     * Compiles a script into a binary chunk, which runCompiled() can run in any number of LuaStates without
+     * parsing the source again. Scripts with the same source share one chunk.
+     * Only ever done here, on the Java side. Scripts themselves still can't load or dump bytecode.
+     * @param name Whose script this is, for the log if it doesn't compile.
+     * @return The compiled chunk, or null if the script has a syntax error, which is logged.
+     */
+    public static byte[] compileSource(String source, String name) {
+        String hash = hashSource(source);
+        byte[] chunk = COMPILED_CHUNKS.get(hash);
+        if (chunk != null)
+            return chunk;
+
+        //Only looked up when persisting, since getFiguaPath() creates the folder
+        Path cacheFile = PERSIST_COMPILED_CHUNKS ? FiguaMod.getFiguaPath().resolve("compiled_scripts").resolve(hash + ".luac") : null;
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            try {
+                chunk = Files.readAllBytes(cacheFile);
+            } catch (IOException e) {
+                //Just compile it again
+                FiguaMod.LOGGER.warn("Couldn't read compiled script " + cacheFile, e);
+            }
+        }
+
+        if (chunk == null) {
+            //Nothing gets run in this state, so it doesn't need the sandbox or a memory limit
+            LuaState compiler = new LuaState53();
+            try {
+                compiler.load(source, "figua");
+                ByteArrayOutputStream out = new ByteArrayOutputStream(source.length());
+                compiler.dump(out);
+                chunk = out.toByteArray();
+            } catch (Exception e) {
+                FiguaMod.LOGGER.error("Couldn't compile the script of " + name, e);
+                return null;
+            } finally {
+                compiler.close();
+            }
+            if (cacheFile != null) {
+                try {
+                    Files.createDirectories(cacheFile.getParent());
+                    Files.write(cacheFile, chunk);
+                } catch (IOException e) {
+                    FiguaMod.LOGGER.warn("Couldn't save compiled script " + cacheFile, e);
+                }
+            }
+        }
+        COMPILED_CHUNKS.put(hash, chunk);
+        return chunk;
+    }
+
+    /**
+     * Runs a chunk made by compileSource(). An error in it is logged, and leaves whatever the script set up before it.
+     * @param name Whose script this is, for the log if it fails.
+     */
+    public static void runCompiled(LuaState luaState, byte[] chunk, String name) {
+        try {
+            //"b" so only binary chunks are accepted here
+            luaState.load(new ByteArrayInputStream(chunk), "figua", "b");
+            luaState.call(0, 0);
+        } catch (Exception e) {
+            FiguaMod.LOGGER.error("Error running the script of " + name, e);
+        }
+    }
+
+    //The mod's own Lua files, compiled, by their name in assets/figua/lua
+    private static final Map<String, byte[]> COMPILED_ASSETS = new ConcurrentHashMap<>();
+
+    /**
+     * Pushes one of the mod's own Lua files from assets/figua/lua as a function, ready to be called.
+     * Each file is only read and compiled once, however many LuaStates load it.
+     * @param name The file name, like "vectors.lua".
+     */
+    public static void loadAsset(LuaState luaState, String name) {
+        byte[] chunk = COMPILED_ASSETS.computeIfAbsent(name, LuaManager::compileAsset);
+        try {
+            luaState.load(new ByteArrayInputStream(chunk), "=" + name, "b");
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load " + name, e);
+        }
+    }
+
+    private static byte[] compileAsset(String name) {
+        String source;
+        try {
+            source = Files.readString(FiguaMod.getAssetPath().resolve("lua").resolve(name));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read " + name, e);
+        }
+        byte[] chunk = compileSource(source, name);
+        if (chunk == null)
+            throw new IllegalStateException("Failed to compile " + name);
+        return chunk;
+    }
+
+    private static String hashSource(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            //Every JVM has to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static void runSource(LuaState luaState, String source) {
         //Try call the source code
         //TODO: proper exception handling
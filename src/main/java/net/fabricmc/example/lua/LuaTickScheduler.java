@@ -0,0 +1,245 @@
+package net.fabricmc.example.lua;
+
+import net.fabricmc.example.FiguaMod;
+import net.fabricmc.example.avatars.AvatarState;
+import org.terasology.jnlua.LuaException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the tick event of every AvatarState with a script, once per client tick, without letting
+ * them take more than a set amount of time between them.
+ *
+ * States are ticked round robin. Each tick starts with the state after the last one which ran,
+ * and goes until either every state has ticked or the next one probably won't fit in the budget.
+ * Whatever didn't fit is deferred, and goes first next tick, so every state gets its turn.
+ * A running script can't be stopped partway through, so how long each state takes is
+ * remembered and used to guess whether it'll fit.
+ *
+ * With PARALLEL_TICKS, the states picked for a tick run on the worker pool instead, so the budget
+ * is shared between all the workers. Every state has its own LuaState and its own model parts,
+ * so they don't touch each other, and each state only goes to one worker. tick() waits for all of
+ * them before returning, which is what keeps their model part changes from being seen half done:
+ * nothing reads them until the next frame is posed, on the same thread that called tick().
+ */
+public class LuaTickScheduler {
+
+    //How long all the tick events together get per client tick. A client tick is 50 ms long,
+    //and the game needs most of that for itself.
+    private static final long TICK_BUDGET_NANOS = 10_000_000L;
+    //How much each new measurement moves a state's average tick cost
+    private static final double AVERAGE_WEIGHT = 0.1;
+    //Whether states tick on the worker pool, or one after another on the client thread
+    public static final boolean PARALLEL_TICKS = true;
+
+    private final List<Entry> entries = new ArrayList<>();
+    //Index of the entry to start with next tick
+    private int cursor;
+    //The entries picked to run in parallel this tick. Reused every tick.
+    private Entry[] batch = new Entry[16];
+
+    //What the last tick did, for debugging
+    private long lastTickNanos;
+    private int lastTickRan, lastTickDeferred;
+
+    /**
+     * Starts ticking a state. Called when a state with a script is created.
+     */
+    public void add(AvatarState state) {
+        entries.add(new Entry(state));
+    }
+
+    /**
+     * Stops ticking a state. Called when the state closes.
+     */
+    public void remove(AvatarState state) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).state == state) {
+                entries.remove(i);
+                //Keep the cursor on the same entry it was on
+                if (i < cursor)
+                    cursor--;
+                if (cursor >= entries.size())
+                    cursor = 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ticks as many states as fit in the budget, starting with the ones deferred last tick.
+     * Called at the end of every client tick.
+     */
+    public void tick() {
+        int count = entries.size();
+        long start = System.nanoTime();
+        int ran = PARALLEL_TICKS && count > 1 ? tickParallel(count) : tickSerial(count, start);
+        for (int i = 0; i < count - ran; i++)
+            entries.get((cursor + i) % count).deferredTicks++;
+
+        lastTickNanos = System.nanoTime() - start;
+        lastTickRan = ran;
+        lastTickDeferred = count - ran;
+    }
+
+    /**
+     * Ticks states one at a time, checking the clock after each one.
+     * @return The number of states which ran.
+     */
+    private int tickSerial(int count, long start) {
+        long elapsed = 0;
+        int ran = 0;
+        while (ran < count) {
+            Entry entry = entries.get(cursor);
+            //Always run at least one, so an avatar slower than the whole budget still gets to tick
+            if (ran > 0 && elapsed + entry.averageNanos > TICK_BUDGET_NANOS)
+                break;
+            entry.tick();
+            ran++;
+            cursor = (cursor + 1) % count;
+            elapsed = System.nanoTime() - start;
+        }
+        return ran;
+    }
+
+    /**
+     * Picks as many states as the workers can probably get through within the budget,
+     * going by their average costs, then ticks them all on the worker pool and waits for them.
+     * @return The number of states which ran.
+     */
+    private int tickParallel(int count) {
+        ForkJoinPool pool = FiguaMod.getWorkerPool();
+        double allowed = (double) TICK_BUDGET_NANOS * pool.getParallelism();
+        double predicted = 0;
+        int ran = 0;
+        while (ran < count) {
+            Entry entry = entries.get((cursor + ran) % count);
+            //Always run at least one, same as tickSerial()
+            if (ran > 0 && predicted + entry.averageNanos > allowed)
+                break;
+            predicted += entry.averageNanos;
+            if (ran == batch.length)
+                batch = Arrays.copyOf(batch, ran * 2);
+            batch[ran++] = entry;
+        }
+        if (ran == 1)
+            batch[0].tick();
+        else
+            pool.invoke(new TickTask(batch, 0, ran));
+        //Don't hold on to states which might get closed
+        Arrays.fill(batch, 0, ran, null);
+        cursor = (cursor + ran) % count;
+        return ran;
+    }
+
+    /**
+     * Gets the average time the given state's tick event takes, in nanoseconds, or -1 if it isn't being ticked.
+     */
+    public long getAverageTickNanos(AvatarState state) {
+        Entry entry = find(state);
+        return entry == null ? -1 : (long) entry.averageNanos;
+    }
+
+    /**
+     * Gets the number of ticks the given state has been deferred for because the budget ran out,
+     * or -1 if it isn't being ticked.
+     */
+    public int getDeferredTicks(AvatarState state) {
+        Entry entry = find(state);
+        return entry == null ? -1 : entry.deferredTicks;
+    }
+
+    /**
+     * How long all the tick events took together last tick, in nanoseconds.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    /**
+     * How many states ticked last tick.
+     */
+    public int getLastTickRan() {
+        return lastTickRan;
+    }
+
+    /**
+     * How many states had to wait for a later tick last tick.
+     */
+    public int getLastTickDeferred() {
+        return lastTickDeferred;
+    }
+
+    private Entry find(AvatarState state) {
+        for (Entry entry : entries)
+            if (entry.state == state)
+                return entry;
+        return null;
+    }
+
+    private static class Entry {
+
+        private final AvatarState state;
+        private double averageNanos;
+        private int deferredTicks;
+        //Only warn about a state going over the whole budget once, rather than every tick
+        private boolean warnedSlow;
+
+        private Entry(AvatarState state) {
+            this.state = state;
+        }
+
+        /**
+         * Runs the tick event. Only ever called by one thread at a time for the same entry.
+         */
+        private void tick() {
+            long start = System.nanoTime();
+            try {
+                state.luaTick();
+            } catch (LuaException e) {
+                //One broken script shouldn't stop all the others from ticking
+                FiguaMod.LOGGER.error("Error in tick event of " + state.getUser().getEntityName(), e);
+            }
+            long nanos = System.nanoTime() - start;
+            //The first measurement is all there is to go on
+            averageNanos = averageNanos == 0 ? nanos : averageNanos + (nanos - averageNanos) * AVERAGE_WEIGHT;
+            if (nanos > TICK_BUDGET_NANOS && !warnedSlow) {
+                FiguaMod.LOGGER.warn("Tick event of " + state.getUser().getEntityName() + " took " + nanos / 1000
+                        + " us, more than the budget for every avatar together");
+                warnedSlow = true;
+            }
+        }
+
+    }
+
+    /**
+     * Ticks a range of entries, splitting it in half until there's one entry per task.
+     */
+    private static class TickTask extends RecursiveAction {
+
+        private final Entry[] entries;
+        private final int from, to;
+
+        private TickTask(Entry[] entries, int from, int to) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                entries[from].tick();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TickTask(entries, from, mid), new TickTask(entries, mid, to));
+        }
+
+    }
+
+}
@@ -2,99 +2,177 @@ package net.fabricmc.example.lua.api;
 
 import org.terasology.jnlua.*;
 
+/**
+ * Adds the "events" table, which scripts register their tick and render functions in.
+ *
+ * Each event keeps its handlers in its own table, and has a dispatcher closure made in Lua which
+ * loops over them. Both are kept in the registry, so invoking an event from Java is one lookup and
+ * one call, however many handlers it has. The number of handlers is tracked on the Java side too,
+ * so events with none don't go into Lua at all.
+ */
 public class EventsApi implements LuaApi {
 
+    //Where each LuaState keeps its EventsApi, so the AvatarState using it can find it again
+    private static final String REGISTRY_KEY = "FIGUA_EVENTS_API";
+
+    //Calls every handler in the table it's given, with whatever arguments it's called with
+    private static final String DISPATCHER_SOURCE =
+            "local handlers = ... " +
+            "return function(...) for i = 1, #handlers do handlers[i](...) end end";
+
+    //The same thing, for scripts calling event:invoke() themselves
+    private static final String INVOKE_SOURCE =
+            "return function(self, ...) for i = 1, #self do self[i](...) end end";
+
+    private final Event tick = new Event();
+    private final Event render = new Event();
+
     public void addTo(LuaState luaState) {
         //Push "events" table
         luaState.newTable();
 
-        //Push event metatable
-        pushMetatable(luaState);
+        //Add the tables of each event to it
+        tick.addTo(luaState, "tick");
+        render.addTo(luaState, "render");
 
-        //Push tick table
-        luaState.newTable();
-        //Set metatable of tick table
-        luaState.pushValue(-2);
-        luaState.setMetatable(-2);
-        //Add table to "events"
-        luaState.setField(-3, "tick");
+        //Add events as global
+        luaState.setGlobal("events");
 
-        //Push render table, same process as tick
-        luaState.newTable();
-        luaState.pushValue(-2);
-        luaState.setMetatable(-2);
-        luaState.setField(-3, "render");
+        //Remember this, so get() can find it
+        luaState.pushJavaObjectRaw(this);
+        luaState.setField(LuaState.REGISTRYINDEX, REGISTRY_KEY);
+    }
 
-        //Pop metatable
+    /**
+     * Gets the EventsApi which was added to the given LuaState.
+     */
+    public static EventsApi get(LuaState luaState) {
+        luaState.getField(LuaState.REGISTRYINDEX, REGISTRY_KEY);
+        EventsApi api = luaState.toJavaObject(-1, EventsApi.class);
         luaState.pop(1);
+        if (api == null)
+            throw new IllegalStateException("LuaState has no events API");
+        return api;
+    }
 
-        //Add events as global
-        luaState.setGlobal("events");
+    public Event getTick() {
+        return tick;
     }
 
-    private static void pushMetatable(LuaState luaState) {
-        //Push metatable
-        luaState.newTable();
+    public Event getRender() {
+        return render;
+    }
 
-        //Prohibit __newindex
-        luaState.pushJavaFunction(state -> {
-            throw new LuaRuntimeException("Cannot modify values in event!");
-        });
-        luaState.setField(-2, "__newindex");
+    /**
+     * One event, like tick or render.
+     */
+    public static class Event {
+
+        //Registry references to the table of handlers and the dispatcher closure
+        private int tableRef, dispatcherRef;
+        //Kept up to date by register() and clear(), which are the only ways to change the handlers
+        private int handlerCount;
+
+        /**
+         * Creates the table for this event, and adds it to the table on top of the stack.
+         */
+        private void addTo(LuaState luaState, String name) {
+            //Push the event table, and give it its metatable
+            luaState.newTable();
+            pushMetatable(luaState);
+            luaState.setMetatable(-2);
+
+            //Keep a reference to the table
+            luaState.pushValue(-1);
+            tableRef = luaState.ref(LuaState.REGISTRYINDEX);
+
+            //Make the dispatcher, with the table as its upvalue, and keep a reference to it
+            luaState.load(DISPATCHER_SOURCE, "=events." + name);
+            luaState.pushValue(-2);
+            luaState.call(1, 1);
+            dispatcherRef = luaState.ref(LuaState.REGISTRYINDEX);
+
+            //Add the table to "events", popping it
+            luaState.setField(-2, name);
+        }
+
+        public boolean hasHandlers() {
+            return handlerCount > 0;
+        }
+
+        /**
+         * Calls every handler with no arguments. Doesn't touch Lua at all when there aren't any.
+         */
+        public void invoke(LuaState luaState) {
+            if (handlerCount == 0) return;
+            luaState.rawGet(LuaState.REGISTRYINDEX, dispatcherRef);
+            luaState.call(0, 0);
+        }
+
+        /**
+         * Calls every handler with a number. Doesn't touch Lua at all when there aren't any.
+         */
+        public void invoke(LuaState luaState, double arg) {
+            if (handlerCount == 0) return;
+            luaState.rawGet(LuaState.REGISTRYINDEX, dispatcherRef);
+            luaState.pushNumber(arg);
+            luaState.call(1, 0);
+        }
+
+        private void pushMetatable(LuaState luaState) {
+            //Push metatable
+            luaState.newTable();
 
-        //Hide metatable
-        luaState.pushBoolean(false);
-        luaState.setField(-2, "__metatable");
+            //Prohibit __newindex
+            luaState.pushJavaFunction(state -> {
+                throw new LuaRuntimeException("Cannot modify values in event!");
+            });
+            luaState.setField(-2, "__newindex");
 
-        //Create table to use as value for __index
-        //This table holds all our functions
-        luaState.newTable();
+            //Hide metatable
+            luaState.pushBoolean(false);
+            luaState.setField(-2, "__metatable");
 
-        //Register function
-        luaState.pushJavaFunction(state -> {
-            state.checkType(1, LuaType.TABLE);
-            state.checkType(2, LuaType.FUNCTION);
-
-            //Push a copy of the function
-            state.pushValue(2);
-            //Store it in the provided table
-            state.rawSet(1, state.rawLen(1) + 1);
-            return 0;
-        });
-        luaState.setField(-2, "register");
-
-        //Clear function
-        luaState.pushJavaFunction(state -> {
-            state.checkType(1, LuaType.TABLE);
+            //Create table to use as value for __index
+            //This table holds all our functions
             luaState.newTable();
-            luaState.replace(1);
-            return 0;
-        });
-        luaState.setField(-2, "clear");
-
-        //Invoke function
-        luaState.pushJavaFunction(state -> {
-            state.checkType(1, LuaType.TABLE);
-            //Get number of arguments and functions
-            int numArguments = state.getTop();
-            int numFunctions = state.rawLen(1);
-            //For each function:
-            for (int i = 1; i <= numFunctions; i++) {
-                //Push the function key
-                state.pushInteger(i);
-                //Pop key, push function
-                state.getTable(1);
-                //Push all arguments
-                for (int j = 2; j <= numArguments; j++)
-                    state.pushValue(j);
-                //Call function with the arguments
-                state.call(numArguments - 1, 0); //-1 because the table is an argument
-            }
-            return 0;
-        });
-        luaState.setField(-2, "invoke");
-
-        //Set our index table in the metatable
-        luaState.setField(-2, "__index");
+
+            //Register function. Always adds to this event's table, whatever table it's called on.
+            luaState.pushJavaFunction(state -> {
+                state.checkType(2, LuaType.FUNCTION);
+                state.rawGet(LuaState.REGISTRYINDEX, tableRef);
+                //Push a copy of the function
+                state.pushValue(2);
+                //Store it in the table
+                state.rawSet(-2, handlerCount + 1);
+                state.pop(1);
+                handlerCount++;
+                return 0;
+            });
+            luaState.setField(-2, "register");
+
+            //Clear function
+            luaState.pushJavaFunction(state -> {
+                state.rawGet(LuaState.REGISTRYINDEX, tableRef);
+                for (int i = handlerCount; i >= 1; i--) {
+                    state.pushNil();
+                    state.rawSet(-2, i);
+                }
+                state.pop(1);
+                handlerCount = 0;
+                return 0;
+            });
+            luaState.setField(-2, "clear");
+
+            //Invoke function, which loops in Lua
+            luaState.load(INVOKE_SOURCE, "=events.invoke");
+            luaState.call(0, 1);
+            luaState.setField(-2, "invoke");
+
+            //Set our index table in the metatable
+            luaState.setField(-2, "__index");
+        }
+
     }
+
 }
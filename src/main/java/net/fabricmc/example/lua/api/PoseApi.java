@@ -0,0 +1,71 @@
+package net.fabricmc.example.lua.api;
+
+import net.fabricmc.example.lua.LuaManager;
+import org.terasology.jnlua.LuaState;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Adds the "pose" table, which sets the rotation, position and scale of model parts by their index
+ * (part.index), without calling into Java for each one. See assets/figua/lua/pose.lua.
+ *
+ * Everything set since the last flush() comes back in one packed buffer, which the AvatarState
+ * applies to its parts right before posing them. The first set after a flush tells Java, so
+ * flushing when nothing was set doesn't call into Lua at all.
+ */
+public class PoseApi implements LuaApi {
+
+    //Bits for which values of an entry were set, same as in pose.lua
+    public static final int ROT = 1, POS = 2, SCALE = 4;
+    //Part index and bits as ints, then 9 floats
+    public static final int BYTES_PER_ENTRY = 4 + 4 + 9 * 4;
+
+    private final int partCount;
+    //Registry reference to the flush function
+    private int flushRef;
+    //Whether anything was set since the last flush. Set from Lua, on the first change after each flush.
+    private boolean changed;
+
+    /**
+     * @param partCount The number of parts in the model, so indices can be checked on the Lua side.
+     */
+    public PoseApi(int partCount) {
+        this.partCount = partCount;
+    }
+
+    public void addTo(LuaState luaState) {
+        //pose.lua returns a function which makes the pose table and its flush function
+        LuaManager.loadAsset(luaState, "pose.lua");
+        luaState.call(0, 1);
+        luaState.pushInteger(partCount);
+        luaState.pushJavaFunction(state -> {
+            changed = true;
+            return 0;
+        });
+        luaState.call(2, 2);
+
+        //Keep the flush function, popping it
+        flushRef = luaState.ref(LuaState.REGISTRYINDEX);
+
+        //Add the pose table as a global
+        luaState.setGlobal("pose");
+    }
+
+    /**
+     * Takes everything scripts set since the last call.
+     * @return The entries, from position 0, each one BYTES_PER_ENTRY long: the part index, which values were set,
+     * then rotation, position and scale as 3 floats each. Null if nothing was set.
+     */
+    public ByteBuffer flush(LuaState luaState) {
+        if (!changed)
+            return null;
+        changed = false;
+        luaState.rawGet(LuaState.REGISTRYINDEX, flushRef);
+        luaState.call(0, 1);
+        byte[] data = luaState.isString(-1) ? luaState.toByteArray(-1) : null;
+        luaState.pop(1);
+        return data == null ? null : ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
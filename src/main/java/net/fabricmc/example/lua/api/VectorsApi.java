@@ -1,69 +1,50 @@
 package net.fabricmc.example.lua.api;
 
-import net.fabricmc.example.math.Vector2;
+import net.fabricmc.example.lua.LuaManager;
 import net.fabricmc.example.math.Vector3;
-import net.fabricmc.example.math.Vector4;
+import org.terasology.jnlua.LuaRuntimeException;
 import org.terasology.jnlua.LuaState;
-
+import org.terasology.jnlua.LuaType;
+
+/**
+ * Adds the "vectors" table, with vec2(), vec3() and vec4().
+ *
+ * The vectors themselves live entirely in Lua, as tables with shared metatables, so arithmetic on them
+ * never calls into Java. See assets/figua/lua/vectors.lua. Java only looks at them when they're
+ * handed to an API function, using checkVector3().
+ */
 public class VectorsApi implements LuaApi {
 
     public void addTo(LuaState luaState) {
-        //Push "vectors" table
-        luaState.newTable();
-
-        // vec2() function: creates new Vector2
-        // vec2(num): Fills Vector2 with num for all values
-        // vec2(x, y, z): Fills Vector2 with x, y
-        luaState.pushJavaFunction(state -> {
-            if (state.isNone(2)) {
-                double val = state.checkNumber(1);
-                state.pushJavaObject(new Vector2(val, val));
-            } else {
-                double x = state.checkNumber(1);
-                double y = state.checkNumber(2);
-                state.pushJavaObject(new Vector2(x, y));
-            }
-            return 1;
-        });
-        luaState.setField(-2, "vec2");
-
-        // vec3() function: creates new Vector3
-        // vec3(num): Fills Vector3 with num for all values
-        // vec3(x, y, z): Fills Vector3 with x, y, z
-        luaState.pushJavaFunction(state -> {
-            if (state.isNone(2)) {
-                double val = state.checkNumber(1);
-                state.pushJavaObject(new Vector3(val, val, val));
-            } else {
-                double x = state.checkNumber(1);
-                double y = state.checkNumber(2);
-                double z = state.checkNumber(3);
-                state.pushJavaObject(new Vector3(x, y, z));
-            }
-            return 1;
-        });
-        luaState.setField(-2, "vec3");
-
-        // vec4() function: creates new Vector4
-        // vec4(num): Fills Vector4 with num for all values
-        // vec4(x, y, z, w): Fills Vector4 with x, y, z, w
-        luaState.pushJavaFunction(state -> {
-            if (state.isNone(2)) {
-                double val = state.checkNumber(1);
-                state.pushJavaObject(new Vector4(val, val, val, val));
-            } else {
-                double x = state.checkNumber(1);
-                double y = state.checkNumber(2);
-                double z = state.checkNumber(3);
-                double w = state.checkNumber(4);
-                state.pushJavaObject(new Vector4(x, y, z, w));
-            }
-            return 1;
-        });
-        luaState.setField(-2, "vec4");
+        //Run vectors.lua, which returns the "vectors" table
+        LuaManager.loadAsset(luaState, "vectors.lua");
+        luaState.call(0, 1);
 
         //Add our table to global values under the name "vectors"
         luaState.setGlobal("vectors");
     }
 
+    /**
+     * Gets the vec3 at the given stack index as a Vector3, for API functions which take one.
+     * Any table with numbers at 1, 2 and 3 works, as does a Java Vector3.
+     */
+    public static Vector3 checkVector3(LuaState luaState, int index) {
+        if (luaState.isJavaObject(index, Vector3.class))
+            return luaState.checkJavaObject(index, Vector3.class);
+        luaState.checkType(index, LuaType.TABLE);
+        index = luaState.absIndex(index);
+        return new Vector3(component(luaState, index, 1), component(luaState, index, 2), component(luaState, index, 3));
+    }
+
+    private static double component(LuaState luaState, int index, int i) {
+        luaState.rawGet(index, i);
+        if (!luaState.isNumber(-1)) {
+            luaState.pop(1);
+            throw new LuaRuntimeException("Expected a vector, missing component " + i);
+        }
+        double value = luaState.toNumber(-1);
+        luaState.pop(1);
+        return value;
+    }
+
 }
@@ -45,9 +45,12 @@ public class AvatarStateManager {
                 List<AvatarState> result = new ArrayList<>(avatars.size());
                 AtomicBoolean failedLoad = new AtomicBoolean(false);
                 avatars.forEach(avatar -> {
-                    if (avatar.isReady())
-                        result.add(avatar.getStateFor(e));
-                    else
+                    if (avatar.isReady()) {
+                        //Null if the avatar couldn't fit another state, in which case it's left off
+                        AvatarState state = avatar.getStateFor(e);
+                        if (state != null)
+                            result.add(state);
+                    } else
                         failedLoad.set(true);
                 });
                 if (!failedLoad.get())
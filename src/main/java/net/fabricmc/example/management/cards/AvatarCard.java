@@ -5,6 +5,7 @@ import net.fabricmc.example.avatars.Avatar;
 import net.fabricmc.example.management.deserializers.FiguaTextureDeserializer;
 import net.fabricmc.example.management.deserializers.ScriptDeserializer;
 import net.fabricmc.example.management.deserializers.VertexDataDeserializer;
+import net.fabricmc.example.rendering.MeshData;
 import net.fabricmc.example.rendering.VAO;
 import net.fabricmc.example.rendering.textures.FiguaTexture;
 import net.minecraft.nbt.NbtCompound;
@@ -69,18 +70,26 @@ public abstract class AvatarCard<T> {
         }
         String finalSource = luaSource; //Need final for lambda
 
+        //Build the mesh on this thread, so the render thread only has to upload it.
+        //Decoding every cuboid on the render thread causes hitches when lots of avatars load at once.
+        MeshData mesh = null;
+        NbtCompound rootPart = null;
+        NbtCompound modelElement = nbt.getCompound("model");
+        if (modelElement != null) {
+            mesh = new VertexDataDeserializer().deserialize(modelElement);
+            rootPart = modelElement.getCompound("root");
+        }
+        MeshData finalMesh = mesh;
+        NbtCompound finalRootPart = rootPart;
+
         //OpenGL calls get used in here, so we need to sync it with the RenderSystem.
         RenderSystem.recordRenderCall(() -> {
             VAO vao = null;
             FiguaTexture texture = null;
-            NbtCompound rootPart = null;
 
-            //Get the model NBT, if it exists, and convert to a VAO.
-            NbtCompound modelElement = nbt.getCompound("model");
-            if (modelElement != null) {
-                vao = new VertexDataDeserializer().deserialize(modelElement);
-                rootPart = modelElement.getCompound("root");
-            }
+            //Upload the mesh, if it exists
+            if (finalMesh != null)
+                vao = new VAO(finalMesh);
 
             //Get the texture NBT if it exists, convert to FiguaTexture
             NbtElement textureElement = nbt.get("texture");
@@ -88,7 +97,7 @@ public abstract class AvatarCard<T> {
                 texture = new FiguaTextureDeserializer().deserialize(textureElement);
             }
             //Finally, fill the avatar with the given info
-            avatar.fill(vao, rootPart, texture, finalSource);
+            avatar.fill(vao, finalRootPart, texture, finalSource);
         });
     }
 
@@ -1,27 +1,30 @@
 package net.fabricmc.example.management.deserializers;
 
-import net.fabricmc.example.math.MathUtils;
-import net.fabricmc.example.math.Vector2;
 import net.fabricmc.example.math.Vector3;
+import net.fabricmc.example.rendering.MeshData;
 import net.fabricmc.example.rendering.RenderUtils;
-import net.fabricmc.example.rendering.VAO;
+import net.fabricmc.example.rendering.VertexLayout;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
 import org.lwjgl.BufferUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.List;
+
+import static org.lwjgl.opengl.GL32.*;
 
 /**
- * Creates a VAO from a model NBT compound.
+ * Creates the MeshData for a VAO from a model NBT compound.
+ * This is all CPU work, so it can be done off the render thread.
  */
-public class VertexDataDeserializer implements NbtDeserializer<VAO> {
+public class VertexDataDeserializer implements NbtDeserializer<MeshData> {
 
     public static String VERSION = "0.1.0";
 
-    public VAO deserialize(NbtElement modelNbt) {
+    //Bounds of the mesh in world units, only used by the compact layout
+    private double minX, minY, minZ;
+    private double sizeX = 1, sizeY = 1, sizeZ = 1;
+
+    public MeshData deserialize(NbtElement modelNbt) {
 
         if (modelNbt.getType() != NbtElement.COMPOUND_TYPE)
             throw new IllegalArgumentException("Illegal nbt type, must be Compound.");
@@ -35,173 +38,168 @@ public class VertexDataDeserializer implements NbtDeserializer<VAO> {
         int numIndices = nbt.getInt("indexCount");
         int numCuboids = nbt.getInt("numCuboids");
 
-        Vector2 texSize = new Vector2(nbt.getInt("texWidth"), nbt.getInt("texHeight"));
+        double texWidth = nbt.getInt("texWidth");
+        double texHeight = nbt.getInt("texHeight");
 
-        ByteBuffer vertexData = BufferUtils.createByteBuffer(RenderUtils.defaultVertexLayout().getBytesPerVertex() * numVertices);
-        IntBuffer indexData = BufferUtils.createIntBuffer(numIndices);
+        VertexLayout layout = RenderUtils.defaultVertexLayout();
+        ByteBuffer vertexData = BufferUtils.createByteBuffer(layout.getBytesPerVertex() * numVertices);
+        //Most avatars have few enough vertices for 16 bit indices, which halves the size of the index buffer
+        boolean shortIndices = numVertices <= 65536;
+        ByteBuffer indexData = BufferUtils.createByteBuffer((shortIndices ? Short.BYTES : Integer.BYTES) * numIndices);
 
         byte[] inBytes = nbt.getByteArray("vertexData");
         ByteBuffer bytes = ByteBuffer.wrap(inBytes);
 
+        //The compact layout stores positions relative to the bounds, so we need those first
+        if (RenderUtils.COMPACT_VERTICES) {
+            findBounds(bytes, numCuboids);
+            bytes.rewind();
+        }
+
         for (int i = 0; i < numCuboids; i++)
-            processCuboid(bytes, vertexData, indexData, texSize, i);
+            processCuboid(bytes, vertexData, indexData, shortIndices, layout.getBytesPerVertex(), texWidth, texHeight, i);
 
         vertexData.flip();
         indexData.flip();
 
         //System.out.println(vertexData.remaining() + " vertex bytes remaining");
         //System.out.println(indexData.remaining() + " index bytes remaining");
-        return new VAO(vertexData, indexData, RenderUtils.defaultVertexLayout());
+        int indexType = shortIndices ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+        if (RenderUtils.COMPACT_VERTICES)
+            return new MeshData(vertexData, indexData, indexType, layout, new Vector3(minX, minY, minZ), new Vector3(sizeX, sizeY, sizeZ));
+        return new MeshData(vertexData, indexData, indexType, layout, Vector3.ZERO, Vector3.ONE);
     }
 
-    private static void processCuboid(ByteBuffer in, ByteBuffer vertexOut, IntBuffer indexOut, Vector2 texSize, int index) {
-        int flags = in.getInt();
-        Vector3 from = MathUtils.partToWorld(new Vector3(
-                readFloatOrShort(in, flags, 0),
-                readFloatOrShort(in, flags, 1),
-                readFloatOrShort(in, flags, 2)));
-        Vector3 to = MathUtils.partToWorld(new Vector3(
-                readFloatOrShort(in, flags, 3),
-                readFloatOrShort(in, flags, 4),
-                readFloatOrShort(in, flags, 5)));
-
-        //North
-        int tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 6);
-            float v1 = readFloatOrShort(in, flags, 7);
-            float u2 = readFloatOrShort(in, flags, 8);
-            float v2 = readFloatOrShort(in, flags, 9);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(to.x(), to.y(), from.z()),
-                    new Vector3(from.x(), to.y(), from.z()),
-                    new Vector3(from.x(), from.y(), from.z()),
-                    new Vector3(to.x(), from.y(), from.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-        //East
-        tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 10);
-            float v1 = readFloatOrShort(in, flags, 11);
-            float u2 = readFloatOrShort(in, flags, 12);
-            float v2 = readFloatOrShort(in, flags, 13);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(to.x(), to.y(), to.z()),
-                    new Vector3(to.x(), to.y(), from.z()),
-                    new Vector3(to.x(), from.y(), from.z()),
-                    new Vector3(to.x(), from.y(), to.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-        //South
-        tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 14);
-            float v1 = readFloatOrShort(in, flags, 15);
-            float u2 = readFloatOrShort(in, flags, 16);
-            float v2 = readFloatOrShort(in, flags, 17);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(from.x(), to.y(), to.z()),
-                    new Vector3(to.x(), to.y(), to.z()),
-                    new Vector3(to.x(), from.y(), to.z()),
-                    new Vector3(from.x(), from.y(), to.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-        //West
-        tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 18);
-            float v1 = readFloatOrShort(in, flags, 19);
-            float u2 = readFloatOrShort(in, flags, 20);
-            float v2 = readFloatOrShort(in, flags, 21);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(from.x(), to.y(), from.z()),
-                    new Vector3(from.x(), to.y(), to.z()),
-                    new Vector3(from.x(), from.y(), to.z()),
-                    new Vector3(from.x(), from.y(), from.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-        //Up
-        tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 22);
-            float v1 = readFloatOrShort(in, flags, 23);
-            float u2 = readFloatOrShort(in, flags, 24);
-            float v2 = readFloatOrShort(in, flags, 25);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(from.x(), to.y(), from.z()),
-                    new Vector3(to.x(), to.y(), from.z()),
-                    new Vector3(to.x(), to.y(), to.z()),
-                    new Vector3(from.x(), to.y(), to.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-        //Down
-        tex = in.get();
-        if (tex != -1) {
-            int rot = in.get();
-            float u1 = readFloatOrShort(in, flags, 26);
-            float v1 = readFloatOrShort(in, flags, 27);
-            float u2 = readFloatOrShort(in, flags, 28);
-            float v2 = readFloatOrShort(in, flags, 29);
-            List<Vector2> uvs = rotateUV(u1, v1, u2, v2, rot);
-            addFace(new Vector3(from.x(), from.y(), to.z()),
-                    new Vector3(to.x(), from.y(), to.z()),
-                    new Vector3(to.x(), from.y(), from.z()),
-                    new Vector3(from.x(), from.y(), from.z()),
-                    uvs, texSize, index, vertexOut, indexOut);
-        }
-
-    }
+    //The corners of each face, in the order north, east, south, west, up, down.
+    //Corners go top left, then clockwise. For up and down faces, check blockbench for which is considered "top left".
+    //Each corner picks either from or to on each axis: bit 2 is x, bit 1 is y, bit 0 is z, and a set bit means "to".
+    private static final int[] FACE_CORNERS = {
+            0b110, 0b010, 0b000, 0b100, //North
+            0b111, 0b110, 0b100, 0b101, //East
+            0b011, 0b111, 0b101, 0b001, //South
+            0b010, 0b011, 0b001, 0b000, //West
+            0b010, 0b110, 0b111, 0b011, //Up
+            0b001, 0b101, 0b100, 0b000  //Down
+    };
+
+    //The normal of each face, in the same order
+    private static final float[] FACE_NORMALS = {
+            0, 0, -1, //North
+            1, 0, 0, //East
+            0, 0, 1, //South
+            -1, 0, 0, //West
+            0, 1, 0, //Up
+            0, -1, 0 //Down
+    };
 
     /**
-     * Top left, proceed clockwise.
-     * For up and down faces, check blockbench for which is considered "top left"
-     * @param p1 Top left
-     * @param p2 Top right
-     * @param p3 Bottom right
-     * @param p4 Bottom left
-     * @param uvs List of UV positions for each corner, in the same order
-     * @param texSize The size of the texture
-     * @param vertexData The buffer to write vertex data into
-     * @param indexData The other buffer to write index data into
+     * Reads through the cuboids once, just to find the bounds of the mesh.
+     * Leaves the buffer at the end of the cuboid data.
      */
-    private static void addFace(Vector3 p1, Vector3 p2, Vector3 p3, Vector3 p4,
-                                List<Vector2> uvs, Vector2 texSize, int partIndex,
-                                ByteBuffer vertexData, IntBuffer indexData) {
-        int verticesAdded = vertexData.position() / RenderUtils.defaultVertexLayout().getBytesPerVertex();
-        Vector3 normal = p1.subtract(p2).cross(p3.subtract(p2)).normalized();
-        vertex(vertexData, p1, uvs.get(0).divide(texSize), normal, partIndex);
-        vertex(vertexData, p2, uvs.get(1).divide(texSize), normal, partIndex);
-        vertex(vertexData, p3, uvs.get(2).divide(texSize), normal, partIndex);
-        vertex(vertexData, p4, uvs.get(3).divide(texSize), normal, partIndex);
-
-        indexData.put(verticesAdded).put(verticesAdded + 2).put(verticesAdded + 1)
-                        .put(verticesAdded).put(verticesAdded + 3).put(verticesAdded + 2);
+    private void findBounds(ByteBuffer in, int numCuboids) {
+        if (numCuboids == 0)
+            return;
+        double maxX, maxY, maxZ;
+        minX = minY = minZ = Double.POSITIVE_INFINITY;
+        maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numCuboids; i++) {
+            int flags = in.getInt();
+            for (int corner = 0; corner < 2; corner++) {
+                double x = readFloatOrShort(in, flags, corner * 3) * (1.0/16);
+                double y = readFloatOrShort(in, flags, corner * 3 + 1) * (1.0/16);
+                double z = readFloatOrShort(in, flags, corner * 3 + 2) * (1.0/16);
+                minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+                minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+            }
+            //Skip over the faces
+            for (int face = 0; face < 6; face++) {
+                if (in.get() == -1)
+                    continue;
+                in.get(); //Rotation
+                for (int j = 0; j < 4; j++)
+                    readFloatOrShort(in, flags, 6 + face * 4 + j);
+            }
+        }
+        //Flat meshes would end up dividing by zero, and any scale works for them
+        sizeX = maxX > minX ? maxX - minX : 1;
+        sizeY = maxY > minY ? maxY - minY : 1;
+        sizeZ = maxZ > minZ ? maxZ - minZ : 1;
+    }
+
+    private void processCuboid(ByteBuffer in, ByteBuffer vertexOut, ByteBuffer indexOut, boolean shortIndices, int bytesPerVertex,
+                               double texWidth, double texHeight, int index) {
+        int flags = in.getInt();
+        //Part units to world units, same as MathUtils.partToWorld()
+        double fromX = readFloatOrShort(in, flags, 0) * (1.0/16);
+        double fromY = readFloatOrShort(in, flags, 1) * (1.0/16);
+        double fromZ = readFloatOrShort(in, flags, 2) * (1.0/16);
+        double toX = readFloatOrShort(in, flags, 3) * (1.0/16);
+        double toY = readFloatOrShort(in, flags, 4) * (1.0/16);
+        double toZ = readFloatOrShort(in, flags, 5) * (1.0/16);
+
+        for (int face = 0; face < 6; face++) {
+            int tex = in.get();
+            if (tex == -1)
+                continue;
+            int rot = in.get();
+            int uvIndex = 6 + face * 4;
+            double u1 = readFloatOrShort(in, flags, uvIndex) / texWidth;
+            double v1 = readFloatOrShort(in, flags, uvIndex + 1) / texHeight;
+            double u2 = readFloatOrShort(in, flags, uvIndex + 2) / texWidth;
+            double v2 = readFloatOrShort(in, flags, uvIndex + 3) / texHeight;
+
+            int verticesAdded = vertexOut.position() / bytesPerVertex;
+            for (int i = 0; i < 4; i++) {
+                int corner = FACE_CORNERS[face * 4 + i];
+                //UV corners also go top left, then clockwise. Rotating the face by 90 degrees shifts them along by one.
+                int uvCorner = (i - rot) & 3;
+                double x = (corner & 0b100) == 0 ? fromX : toX;
+                double y = (corner & 0b010) == 0 ? fromY : toY;
+                double z = (corner & 0b001) == 0 ? fromZ : toZ;
+                double u = uvCorner == 1 || uvCorner == 2 ? u2 : u1;
+                double v = uvCorner >= 2 ? v2 : v1;
+                if (RenderUtils.COMPACT_VERTICES)
+                    compactVertex(vertexOut, x, y, z, u, v, face, index);
+                else
+                    fullVertex(vertexOut, x, y, z, u, v, face, index);
+            }
+
+            if (shortIndices) {
+                //Indices go up to 65535, which still fits once cast, since GL reads them as unsigned
+                indexOut.putShort((short) verticesAdded).putShort((short) (verticesAdded + 2)).putShort((short) (verticesAdded + 1))
+                        .putShort((short) verticesAdded).putShort((short) (verticesAdded + 3)).putShort((short) (verticesAdded + 2));
+            } else {
+                indexOut.putInt(verticesAdded).putInt(verticesAdded + 2).putInt(verticesAdded + 1)
+                        .putInt(verticesAdded).putInt(verticesAdded + 3).putInt(verticesAdded + 2);
+            }
+        }
     }
 
-    private static void vertex(ByteBuffer vertexData, Vector3 pos, Vector2 uv, Vector3 normal, int index) {
-        vertexData
-                .putFloat((float) pos.x()).putFloat((float) pos.y()).putFloat((float) pos.z()) //Pos
+    private static void fullVertex(ByteBuffer vertexOut, double x, double y, double z, double u, double v, int face, int index) {
+        vertexOut
+                .putFloat((float) x).putFloat((float) y).putFloat((float) z) //Pos
                 .put((byte) 0xFF).put((byte) 0xFF).put((byte) 0xFF).put((byte) 0xFF) //Color
-                .putFloat((float) uv.x()).putFloat((float) uv.y()) //UV
-                .putFloat((float) normal.x()).putFloat((float) normal.y()).putFloat((float) normal.z())
+                .putFloat((float) u).putFloat((float) v) //UV
+                .putFloat(FACE_NORMALS[face * 3]).putFloat(FACE_NORMALS[face * 3 + 1]).putFloat(FACE_NORMALS[face * 3 + 2]) //Normal
                 .putShort((short) index);
     }
 
-    private static List<Vector2> rotateUV(double u1, double v1, double u2, double v2, int rot) {
-        List<Vector2> cornerUVs = new LinkedList<>();
-        cornerUVs.add(new Vector2(u1, v1));
-        cornerUVs.add(new Vector2(u2, v1));
-        cornerUVs.add(new Vector2(u2, v2));
-        cornerUVs.add(new Vector2(u1, v2));
-        for (int i = 0; i < rot; i++)
-            cornerUVs.add(0, cornerUVs.remove(3));
-        return cornerUVs;
+    private void compactVertex(ByteBuffer vertexOut, double x, double y, double z, double u, double v, int face, int index) {
+        vertexOut
+                .putShort(toUnsignedNormalized((x - minX) / sizeX))
+                .putShort(toUnsignedNormalized((y - minY) / sizeY))
+                .putShort(toUnsignedNormalized((z - minZ) / sizeZ))
+                .putShort((short) 0) //Pos, with padding
+                .putShort(toUnsignedNormalized(u)).putShort(toUnsignedNormalized(v)) //UV
+                .putShort((short) index).putShort((short) face); //Transform index, face direction
+    }
+
+    /**
+     * Converts a value from 0 to 1 into a normalized unsigned short, clamping anything outside that range.
+     */
+    private static short toUnsignedNormalized(double value) {
+        return (short) Math.round(Math.min(Math.max(value, 0), 1) * 65535);
     }
 
     private static float readFloatOrShort(ByteBuffer in, int flags, int index) {
@@ -212,8 +210,4 @@ public class VertexDataDeserializer implements NbtDeserializer<VAO> {
         }
     }
 
-    private static void makeFace(Vector3 point1, Vector3 point2, Vector3 point3, Vector3 point4) {
-
-    }
-
 }
@@ -1,9 +1,7 @@
 package net.fabricmc.example.management.serializers;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import net.fabricmc.example.FiguaMod;
 import net.fabricmc.example.math.Vector3;
 import net.minecraft.nbt.NbtByteArray;
@@ -13,9 +11,14 @@ import net.minecraft.nbt.NbtList;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,11 +29,14 @@ public class BBModelSerializer implements NbtSerializer<Path> {
 
     public static final String VERSION = "0.1.0";
 
+    private static final List<String> FACE_NAMES = List.of("north", "east", "south", "west", "up", "down");
+
     public NbtCompound serialize(Path path) {
         try {
             if (Files.exists(path)) {
-                String jsonString = Files.readString(path);
-                return parse(jsonString);
+                try (Reader reader = Files.newBufferedReader(path)) {
+                    return parse(reader);
+                }
             }
         } catch (IOException e) {
             FiguaMod.LOGGER.error(e);
@@ -40,6 +46,22 @@ public class BBModelSerializer implements NbtSerializer<Path> {
 
     /**
      * Converts a json string to a model data compound.
+     * See parse(Reader) for the format.
+     * @param json The json of a .bbmodel file, as a string.
+     * @return An NbtCompound representing the contents of this bbmodel file.
+     */
+    public NbtCompound parse(String json) {
+        try {
+            return parse(new StringReader(json));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Streams a .bbmodel file into a model data compound.
+     * Only the parts of the file we use are ever read into memory. Sections like
+     * the base64 textures and the animations are skipped over token by token.
      * The format is:
      *
      * version: [String] // The version which was used to encode this NbtCompound.
@@ -57,21 +79,39 @@ public class BBModelSerializer implements NbtSerializer<Path> {
      * vertexCount: [Int]
      * indexCount: [Int]
      *
-     * @param json The json of a .bbmodel file, as a string.
+     * @param reader A reader over the json of a .bbmodel file.
      * @return An NbtCompound representing the contents of this bbmodel file.
      */
-    public NbtCompound parse(String json) {
-
-        JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
-
-        JsonArray elementArray = jsonObject.getAsJsonArray("elements");
-        Map<String, JsonObject> elementMap = collectElementsByUUID(elementArray);
-
-        JsonObject resolution = jsonObject.getAsJsonObject("resolution");
-        int w = resolution.get("width").getAsInt();
-        int h = resolution.get("height").getAsInt();
+    public NbtCompound parse(Reader reader) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+
+        Map<String, Element> elementMap = new HashMap<>();
+        List<Object> outliner = List.of();
+        int w = 0;
+        int h = 0;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "elements" -> readElements(json, elementMap);
+                case "outliner" -> outliner = readOutliner(json);
+                case "resolution" -> {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        switch (json.nextName()) {
+                            case "width" -> w = json.nextInt();
+                            case "height" -> h = json.nextInt();
+                            default -> json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                }
+                default -> json.skipValue();
+            }
+        }
+        json.endObject();
 
-        JsonArray outliner = jsonObject.getAsJsonArray("outliner");
         NbtList modelPartList = new NbtList();
         ByteArrayOutputStream vertexData = new ByteArrayOutputStream();
         int[] counts = new int[3];
@@ -90,64 +130,164 @@ public class BBModelSerializer implements NbtSerializer<Path> {
         modelCompound.putInt("texWidth", w);
         modelCompound.putInt("texHeight", h);
 
-
-        byte[] bytes = vertexData.toByteArray();
-//        try {
-//            FileOutputStream fos = new FileOutputStream("C:\\Users\\tball\\Desktop\\Minecraft Modding\\test.zip");
-//            ZipOutputStream zos = new ZipOutputStream(fos);
-//            zos.putNextEntry(new ZipEntry("Hi"));
-//            zos.write(bytes);
-//            zos.closeEntry();
-//            zos.finish();
-//            zos.close();
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-
-
-        modelCompound.put("vertexData", new NbtByteArray(bytes));
+        modelCompound.put("vertexData", new NbtByteArray(vertexData.toByteArray()));
         modelCompound.put("root", rootPart);
         return modelCompound;
     }
 
     /**
-     * Processes all json elements in the given json array,
+     * Processes all the parsed outliner entries in the given list,
      * converts them to Model Part NbtCompounds, and puts
      * them in the provided list.
      * @param elementMap Map of the "elements" in the bbmodel file, the cuboids and meshes. Keys are uuids.
-     * @param parts Array of parts to process, can contain either Json objects or uuid strings.
+     * @param parts Outliner entries to process, can contain either OutlinerGroups or uuid strings.
      * @param partList Nbt list to put the processed parts into.
      * @param vertexData ByteArrayOutputStream to put vertex data into.
-     * @param counts Small 2-element array to keep track of vertexCount and indexCount.
+     * @param counts Small 3-element array to keep track of vertexCount, indexCount and numCuboids.
      */
-    public static void processParts(Map<String, JsonObject> elementMap, JsonArray parts, NbtList partList, ByteArrayOutputStream vertexData, int[] counts) {
-        for (JsonElement jsonPart : parts) {
+    private static void processParts(Map<String, Element> elementMap, List<Object> parts, NbtList partList, ByteArrayOutputStream vertexData, int[] counts) {
+        for (Object entry : parts) {
             NbtCompound part = new NbtCompound();
-            boolean isGroup = jsonPart.isJsonObject();
-            JsonObject obj;
-            if (isGroup)
-                obj = jsonPart.getAsJsonObject();
-            else
-                obj = elementMap.get(jsonPart.getAsString());
-            part.putString("name", obj.get("name").getAsString());
-            if (obj.has("origin"))
-                part.put("pivot", vector3ToNbt(vector3FromJArray(obj.getAsJsonArray("origin"))));
-            if (obj.has("rotation"))
-                part.put("rotation", vector3ToNbt(vector3FromJArray(obj.getAsJsonArray("rotation"))));
-            if (obj.has("visibility"))
-                part.putBoolean("visibility", obj.get("visibility").getAsBoolean());
-            if (obj.has("children")) {
-                NbtList children = new NbtList();
-                processParts(elementMap, obj.getAsJsonArray("children"), children, vertexData, counts);
-                part.put("children", children);
-            }
-            if (!isGroup) {
-                processCuboid(obj, vertexData, counts);
+            if (entry instanceof OutlinerGroup group) {
+                putPartInfo(part, group.name, group.origin, group.rotation, group.visibility);
+                if (group.children != null) {
+                    NbtList children = new NbtList();
+                    processParts(elementMap, group.children, children, vertexData, counts);
+                    part.put("children", children);
+                }
+            } else {
+                Element element = elementMap.get((String) entry);
+                if (element == null) {
+                    //Meshes and other elements we don't support yet end up here
+                    FiguaMod.LOGGER.warn("Skipping unsupported or missing element " + entry);
+                    continue;
+                }
+                putPartInfo(part, element.name, element.origin, element.rotation, element.visibility);
+                vertexData.writeBytes(element.cuboidData);
+                counts[0] += element.vertexCount;
+                counts[1] += element.indexCount;
+                counts[2]++;
             }
             partList.add(part);
         }
     }
 
+    private static void putPartInfo(NbtCompound part, String name, Vector3 origin, Vector3 rotation, Boolean visibility) {
+        part.putString("name", name);
+        if (origin != null)
+            part.put("pivot", vector3ToNbt(origin));
+        if (rotation != null)
+            part.put("rotation", vector3ToNbt(rotation));
+        if (visibility != null)
+            part.putBoolean("visibility", visibility);
+    }
+
+    /**
+     * Reads the "elements" array. Each cuboid is encoded into its vertex data
+     * bytes straight away, so none of the json is kept around. The bytes are
+     * appended to the vertex stream later, in outliner order.
+     */
+    private static void readElements(JsonReader json, Map<String, Element> elementMap) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                json.skipValue();
+                continue;
+            }
+            Element element = readElement(json);
+            if (element != null)
+                elementMap.put(element.uuid, element);
+        }
+        json.endArray();
+    }
+
+    /**
+     * Reads a single element object.
+     * @return The element, or null if it had no uuid or isn't a cuboid.
+     */
+    private static Element readElement(JsonReader json) throws IOException {
+        Element element = new Element();
+        String type = "cube";
+        Vector3 from = Vector3.ZERO;
+        Vector3 to = Vector3.ZERO;
+        double inflate = 0;
+        byte[] texes = {-1, -1, -1, -1, -1, -1};
+        byte[] rots = new byte[6];
+        double[] uvs = new double[24];
+        int flags = 0;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "uuid" -> element.uuid = json.nextString();
+                case "name" -> element.name = json.nextString();
+                case "type" -> type = json.nextString();
+                case "origin" -> element.origin = readVector3(json);
+                case "rotation" -> element.rotation = readVector3(json);
+                case "visibility" -> element.visibility = readBoolean(json);
+                case "from" -> from = readVector3(json);
+                case "to" -> to = readVector3(json);
+                case "inflate" -> inflate = json.nextDouble();
+                case "faces" -> {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        int index = FACE_NAMES.indexOf(json.nextName());
+                        if (index == -1)
+                            json.skipValue();
+                        else
+                            flags = processFace(json, index, texes, rots, uvs, flags);
+                    }
+                    json.endObject();
+                }
+                default -> json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (element.uuid == null || !type.equals("cube"))
+            return null;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        processCuboid(from, to, inflate, texes, rots, uvs, flags, bytes, element);
+        element.cuboidData = bytes.toByteArray();
+        return element;
+    }
+
+    /**
+     * Reads the "outliner" array into a light tree of OutlinerGroups
+     * and uuid strings.
+     */
+    private static List<Object> readOutliner(JsonReader json) throws IOException {
+        List<Object> result = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+            switch (json.peek()) {
+                case STRING -> result.add(json.nextString());
+                case BEGIN_OBJECT -> result.add(readGroup(json));
+                default -> json.skipValue();
+            }
+        }
+        json.endArray();
+        return result;
+    }
+
+    private static OutlinerGroup readGroup(JsonReader json) throws IOException {
+        OutlinerGroup group = new OutlinerGroup();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "name" -> group.name = json.nextString();
+                case "origin" -> group.origin = readVector3(json);
+                case "rotation" -> group.rotation = readVector3(json);
+                case "visibility" -> group.visibility = readBoolean(json);
+                case "children" -> group.children = readOutliner(json);
+                default -> json.skipValue();
+            }
+        }
+        json.endObject();
+        return group;
+    }
+
     /**
      * The format of cuboid storage is this:
      * - An int, of which the smallest 30 bits are used as flags for the specified "Numbers".
@@ -166,19 +306,21 @@ public class BBModelSerializer implements NbtSerializer<Path> {
      *     2 Numbers bottom-right UV
      * }
      *
-     * These numbers all end up in the List passed in.
-     * @param cuboid The jsonObject containing the cuboid
-     * @param bytes The arraylist for the result to be read into
+     * These numbers all end up in the stream passed in.
+     * @param from The "from" corner of the cuboid, before inflating
+     * @param to The "to" corner of the cuboid, before inflating
+     * @param inflate How much to grow the cuboid by in every direction
+     * @param texes The texture id of each face, -1 if the face is empty
+     * @param rots The texture rotation of each face
+     * @param uvs The UV coordinates of each face
+     * @param uvFlags Flags for the UVs, as set by processFace
+     * @param bytes The stream for the result to be written into
+     * @param element The element to record vertex and index counts in
      */
-    private static void processCuboid(JsonObject cuboid, ByteArrayOutputStream bytes, int[] counts) {
-        counts[2]++; //Num cuboids
-        int flags = 0;
+    private static void processCuboid(Vector3 from, Vector3 to, double inflate, byte[] texes, byte[] rots, double[] uvs,
+                                      int uvFlags, ByteArrayOutputStream bytes, Element element) {
+        int flags = uvFlags;
 
-        double inflate = 0;
-        if (cuboid.has("inflate"))
-            inflate = cuboid.get("inflate").getAsDouble();
-
-        Vector3 from = vector3FromJArray(cuboid.getAsJsonArray("from"));
         from = from.subtract(Vector3.ONE.scale(inflate));
         if (from.x() != Math.rint(from.x()))
             flags |= 1;
@@ -187,7 +329,6 @@ public class BBModelSerializer implements NbtSerializer<Path> {
         if (from.z() != Math.rint(from.z()))
             flags |= 4;
 
-        Vector3 to = vector3FromJArray(cuboid.getAsJsonArray("to"));
         to = to.add(Vector3.ONE.scale(inflate));
         if (to.x() != Math.rint(to.x()))
             flags |= 8;
@@ -196,18 +337,6 @@ public class BBModelSerializer implements NbtSerializer<Path> {
         if (to.z() != Math.rint(to.z()))
             flags |= 32;
 
-        JsonObject faces = cuboid.getAsJsonObject("faces");
-        byte[] texes = new byte[6];
-        byte[] rots = new byte[6];
-        double[] uvs = new double[24];
-
-        flags = processFace(0, faces.getAsJsonObject("north"), texes, rots, uvs, flags);
-        flags = processFace(1, faces.getAsJsonObject("east"), texes, rots, uvs, flags);
-        flags = processFace(2, faces.getAsJsonObject("south"), texes, rots, uvs, flags);
-        flags = processFace(3, faces.getAsJsonObject("west"), texes, rots, uvs, flags);
-        flags = processFace(4, faces.getAsJsonObject("up"), texes, rots, uvs, flags);
-        flags = processFace(5, faces.getAsJsonObject("down"), texes, rots, uvs, flags);
-
         bytes.write((byte) (flags >> 24));
         bytes.write((byte) (flags >> 16));
         bytes.write((byte) (flags >> 8));
@@ -224,8 +353,8 @@ public class BBModelSerializer implements NbtSerializer<Path> {
             bytes.write(texes[i]);
             if (texes[i] != -1) {
                 bytes.write(rots[i]);
-                counts[0] += 4; //vertexCount
-                counts[1] += 6; //indexCount
+                element.vertexCount += 4;
+                element.indexCount += 6;
                 for (int j = 0; j < 4; j++) {
                     int index = i * 4 + j;
                     putFloatOrShort(bytes, flags, index + 6, uvs[index]);
@@ -258,58 +387,70 @@ public class BBModelSerializer implements NbtSerializer<Path> {
     }
 
     /**
-     * Processes a json face from the .bbmodel.
+     * Reads a json face from the .bbmodel.
+     * A face with a null texture is empty, and doesn't get any vertices.
+     * A face with no texture at all uses texture 0.
+     * @param json The reader, positioned at the face object
      * @param index The index of the face we're parsing
-     * @param face The JsonObject containing the face data
      * @param texes An array which we write our output to, which texture this face uses
      * @param rots An array which we output to, the rotation of the texture on this face
      * @param uvs An array we output to, contains the U and V coordinates of this face
      * @param flags Flags which we modify then return, based on whether the UV coords are whole numbers.
      * @return flags, modified as above.
      */
-    private static int processFace(int index, JsonObject face, byte[] texes, byte[] rots, double[] uvs, int flags) {
-        JsonElement tex = face.get("texture");
-        if (tex != null && tex.isJsonNull()) {
-            texes[index] = -1;
-        } else {
-            if (face.has("rotation"))
-                rots[index] = (byte) Math.round(face.get("rotation").getAsDouble()/90);
-            if (tex != null)
-                texes[index] = tex.getAsByte();
-            else
-                texes[index] = 0;
-            JsonArray uv = face.getAsJsonArray("uv");
-
-            for (int i = 0; i < 4; i++) {
-                uvs[4 * index + i] = uv.get(i).getAsDouble();
+    private static int processFace(JsonReader json, int index, byte[] texes, byte[] rots, double[] uvs, int flags) throws IOException {
+        byte tex = 0;
+        byte rot = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "texture" -> {
+                    if (json.peek() == JsonToken.NULL) {
+                        json.nextNull();
+                        tex = -1;
+                    } else {
+                        tex = (byte) json.nextInt();
+                    }
+                }
+                case "rotation" -> rot = (byte) Math.round(json.nextDouble()/90);
+                case "uv" -> {
+                    json.beginArray();
+                    for (int i = 0; i < 4 && json.hasNext(); i++)
+                        uvs[4 * index + i] = json.nextDouble();
+                    while (json.hasNext())
+                        json.skipValue();
+                    json.endArray();
+                }
+                default -> json.skipValue();
+            }
+        }
+        json.endObject();
+
+        texes[index] = tex;
+        if (tex != -1) {
+            rots[index] = rot;
+            for (int i = 0; i < 4; i++)
                 if (uvs[4 * index + i] != Math.rint(uvs[4 * index + i]))
                     flags |= (1 << (4 * index + i + 6));
-            }
         }
         return flags;
     }
 
-    /**
-     * Creates an easy map from UUID -> JsonObject so we can
-     * easily find elements referenced in the outliner.
-     * @param elementArray The array of elements.
-     * @return A map from UUIDs to Elements.
-     */
-    private static Map<String, JsonObject> collectElementsByUUID(JsonArray elementArray) {
-        Map<String, JsonObject> result = new HashMap<>();
-        for (JsonElement element : elementArray) {
-            if (!element.isJsonObject())
-                continue;
-            JsonObject obj = element.getAsJsonObject();
-            if (!obj.has("uuid"))
-                continue;
-            result.put(obj.get("uuid").getAsString(), obj);
-        }
-        return result;
+    private static Vector3 readVector3(JsonReader json) throws IOException {
+        json.beginArray();
+        double x = json.nextDouble();
+        double y = json.nextDouble();
+        double z = json.nextDouble();
+        while (json.hasNext())
+            json.skipValue();
+        json.endArray();
+        return new Vector3(x, y, z);
     }
 
-    private static Vector3 vector3FromJArray(JsonArray array) {
-        return new Vector3(array.get(0).getAsDouble(), array.get(1).getAsDouble(), array.get(2).getAsDouble());
+    private static boolean readBoolean(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.BOOLEAN)
+            return json.nextBoolean();
+        return Boolean.parseBoolean(json.nextString());
     }
 
     private static NbtList vector3ToNbt(Vector3 vec) {
@@ -319,4 +460,29 @@ public class BBModelSerializer implements NbtSerializer<Path> {
         result.add(NbtFloat.of((float) vec.z()));
         return result;
     }
+
+    /**
+     * A cuboid from the "elements" array, already encoded to vertex data.
+     */
+    private static class Element {
+        private String uuid;
+        private String name = "";
+        private Vector3 origin;
+        private Vector3 rotation;
+        private Boolean visibility;
+        private byte[] cuboidData;
+        private int vertexCount;
+        private int indexCount;
+    }
+
+    /**
+     * A group from the "outliner". Children are OutlinerGroups or element uuids.
+     */
+    private static class OutlinerGroup {
+        private String name = "";
+        private Vector3 origin;
+        private Vector3 rotation;
+        private Boolean visibility;
+        private List<Object> children;
+    }
 }
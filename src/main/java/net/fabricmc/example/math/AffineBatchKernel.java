@@ -0,0 +1,53 @@
+package net.fabricmc.example.math;
+
+import net.fabricmc.example.FiguaMod;
+
+/**
+ * Composes many affine matrices with their parents in one go. Used by CompiledPartTree to pose
+ * a whole depth level of a model at once, since no part in a level depends on another.
+ *
+ * Matrices are stored in float arrays as their top 3 rows, 12 floats each, and found through
+ * offsets into those arrays. For every i from "from" up to "to":
+ * world[nodeOffsets[i]] = world[parentOffsets[i]] * local[nodeOffsets[i]]
+ *
+ * get() picks the SIMD version when the JVM was started with --add-modules jdk.incubator.vector,
+ * and the plain scalar version otherwise.
+ */
+public abstract class AffineBatchKernel {
+
+    private static AffineBatchKernel instance;
+
+    public abstract void compose(float[] world, float[] local, int[] nodeOffsets, int[] parentOffsets, int from, int to);
+
+    /**
+     * Gets the fastest kernel which works on this JVM. Checks the first time it's called, then caches the result.
+     */
+    public static AffineBatchKernel get() {
+        if (instance == null)
+            instance = create();
+        return instance;
+    }
+
+    /**
+     * Whether the incubating Vector API module is loaded. It isn't unless the JVM is started with
+     * --add-modules jdk.incubator.vector, and touching its classes without it throws.
+     */
+    public static boolean vectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    private static AffineBatchKernel create() {
+        if (vectorApiAvailable()) {
+            try {
+                //Loaded by name, so this class never links against the Vector API when it's missing.
+                //It's compiled separately too, in the vector source set, so nothing else needs the module to compile.
+                return (AffineBatchKernel) Class.forName("net.fabricmc.example.math.VectorAffineKernel")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                FiguaMod.LOGGER.warn("Failed to load the SIMD pose kernel, falling back to the scalar one", e);
+            }
+        }
+        return new ScalarAffineKernel();
+    }
+
+}
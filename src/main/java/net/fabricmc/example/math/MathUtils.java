@@ -5,44 +5,37 @@ import net.minecraft.client.render.Camera;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.LivingEntity;
 import net.minecraft.util.math.MathHelper;
-import net.minecraft.util.math.Matrix3f;
+import net.minecraft.util.math.Quaternion;
+import net.minecraft.util.math.Vec3d;
 
 public class MathUtils {
 
     /**
-     * Returns the matrix for an entity, used to transform from entity space to world space.
-     * This is inelegant, will rework later. Currently makes a distinction for LivingEntities to use body yaw,
-     * and non-living entities to just lerp their yaws.
-     * @param e The entity to get the matrix for.
-     * @return A matrix which represents the transformation from entity space to part space.
+     * Calculates the matrix from entity space straight to view space, without allocating anything.
+     * That's the entity's body yaw and position, then the inverse of the camera's position and rotation.
+     * Non-living entities use their lerped yaw instead of a body yaw.
+     * The entity's position is taken relative to the camera in double precision first, so floats are still precise far from 0, 0, 0.
+     * @param dest The matrix to write the result into.
+     * @return dest
      */
-    public static Matrix4 entityToWorldMatrix(Entity e, float delta) {
+    public static MutableMatrix4 entityToViewMatrix(Entity e, float delta, MutableMatrix4 dest) {
         double yaw;
         if (e instanceof LivingEntity)
             yaw = MathHelper.lerp(delta, ((LivingEntity) e).prevBodyYaw, ((LivingEntity) e).bodyYaw);
         else
             yaw = e.getYaw(MinecraftClient.getInstance().getTickDelta());
-        return Matrix4.rotateY(Math.toRadians(180-yaw))
-                .multiply(Matrix4.translate(e.getLerpedPos(delta)));
-    }
-
-    /**
-     * Gets a matrix to transform from world space to part space, based on the player's camera position.
-     * @return That matrix.
-     */
-    public static Matrix4 worldToViewMatrix() {
-        MinecraftClient client = MinecraftClient.getInstance();
-        Camera camera = client.gameRenderer.getCamera();
-        Matrix3f cameraMat = new Matrix3f(camera.getRotation());
-        cameraMat.invert();
-        return Matrix4.translate(camera.getPos().multiply(-1))
-                .multiply(new Matrix4(Matrix3.fromMatrix3f(cameraMat)))
-                .multiply(new Matrix4(
-                        -1,0,0,0,
-                        0,1,0,0,
-                        0,0,-1,0,
-                        0,0,0,1));
-
+        Camera camera = MinecraftClient.getInstance().gameRenderer.getCamera();
+        Vec3d cameraPos = camera.getPos();
+        Quaternion cameraRot = camera.getRotation();
+        //The inverse of the camera's rotation is its conjugate
+        return dest.identity()
+                .rotateY((float) Math.toRadians(180-yaw))
+                .translate(
+                        (float) (MathHelper.lerp(delta, e.prevX, e.getX()) - cameraPos.x),
+                        (float) (MathHelper.lerp(delta, e.prevY, e.getY()) - cameraPos.y),
+                        (float) (MathHelper.lerp(delta, e.prevZ, e.getZ()) - cameraPos.z))
+                .rotate(-cameraRot.getX(), -cameraRot.getY(), -cameraRot.getZ(), cameraRot.getW())
+                .scale(-1, 1, -1);
     }
 
     /**
@@ -55,6 +48,30 @@ public class MathUtils {
         return r;
     }
 
+    /**
+     * Converts a float to the bits of a half-precision float, rounding to the nearest one.
+     * Values too big for a half become infinity, and values too small become zero.
+     */
+    public static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (((bits >>> 23) & 0xFF) == 0xFF) //Infinity or NaN
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        if (exponent >= 0x1F) //Too big
+            return (short) (sign | 0x7C00);
+        if (exponent <= 0) {
+            //Too small for a normal half, so it becomes subnormal or zero
+            if (exponent < -10)
+                return (short) sign;
+            mantissa = (mantissa | 0x800000) >> (1 - exponent);
+            return (short) (sign | ((mantissa + 0x1000) >> 13));
+        }
+        //If rounding carries out of the mantissa, it correctly bumps up the exponent
+        return (short) (sign | ((exponent << 10) + ((mantissa + 0x1000) >> 13)));
+    }
+
     /**
      * Converts from world space to part space. Unlike the prewrite, this is actually pretty easy since
      * it's just scaling by 16, no negatives or other weird stuff in sight.
@@ -74,4 +91,8 @@ public class MathUtils {
         return vec.scale(1.0/16);
     }
 
+    public static float partToWorld(float value) {
+        return value / 16;
+    }
+
 }
@@ -11,6 +11,7 @@ import org.terasology.jnlua.JavaReflector;
 import org.terasology.jnlua.LuaRuntimeException;
 import org.terasology.jnlua.TypedJavaObject;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.HashMap;
 import java.util.Map;
@@ -91,6 +92,14 @@ public record Matrix4(double a11, double a21, double a31, double a41,
                 .put((float) a14).put((float) a24).put((float) a34).put((float) a44);
     }
 
+    public void uploadToBuffer(ByteBuffer buf) {
+        buf
+                .putFloat((float) a11).putFloat((float) a21).putFloat((float) a31).putFloat((float) a41)
+                .putFloat((float) a12).putFloat((float) a22).putFloat((float) a32).putFloat((float) a42)
+                .putFloat((float) a13).putFloat((float) a23).putFloat((float) a33).putFloat((float) a43)
+                .putFloat((float) a14).putFloat((float) a24).putFloat((float) a34).putFloat((float) a44);
+    }
+
     public Matrix4 add(Matrix4 other) {
         return new Matrix4(
                 a11 + other.a11, a21 + other.a21, a31 + other.a31, a41 + other.a41,
@@ -128,6 +137,83 @@ public record Matrix4(double a11, double a21, double a31, double a41,
         }
     }
 
+    /**
+     * Returns the inverse of this matrix, assuming it's affine (the bottom row is 0, 0, 0, 1).
+     * Every transform of a model part is, and this is much cheaper than inverse().
+     * @throws IllegalArgumentException If the matrix can't be inverted.
+     */
+    public Matrix4 affineInverse() {
+        //Inverse of the 3x3 part from its cofactors
+        double c11 = a22 * a33 - a23 * a32;
+        double c12 = a23 * a31 - a21 * a33;
+        double c13 = a21 * a32 - a22 * a31;
+        double det = a11 * c11 + a12 * c12 + a13 * c13;
+        if (det == 0)
+            throw new IllegalArgumentException("Matrix cannot be inverted");
+        double invDet = 1 / det;
+        double i11 = c11 * invDet, i12 = (a13 * a32 - a12 * a33) * invDet, i13 = (a12 * a23 - a13 * a22) * invDet;
+        double i21 = c12 * invDet, i22 = (a11 * a33 - a13 * a31) * invDet, i23 = (a13 * a21 - a11 * a23) * invDet;
+        double i31 = c13 * invDet, i32 = (a12 * a31 - a11 * a32) * invDet, i33 = (a11 * a22 - a12 * a21) * invDet;
+        //The translation is undone by the inverted 3x3 part applied to -translation
+        return new Matrix4(
+                i11, i21, i31, 0,
+                i12, i22, i32, 0,
+                i13, i23, i33, 0,
+                -(i11 * a14 + i12 * a24 + i13 * a34),
+                -(i21 * a14 + i22 * a24 + i23 * a34),
+                -(i31 * a14 + i32 * a24 + i33 * a34),
+                1
+        );
+    }
+
+    /**
+     * Returns the inverse of this matrix. Uses affineInverse() when the matrix is affine.
+     * @throws IllegalArgumentException If the matrix can't be inverted.
+     */
+    public Matrix4 inverse() {
+        if (a41 == 0 && a42 == 0 && a43 == 0 && a44 == 1)
+            return affineInverse();
+
+        //Determinants of the 2x2 blocks in the top two rows, and in the bottom two rows
+        double s0 = a11 * a22 - a21 * a12;
+        double s1 = a11 * a23 - a21 * a13;
+        double s2 = a11 * a24 - a21 * a14;
+        double s3 = a12 * a23 - a22 * a13;
+        double s4 = a12 * a24 - a22 * a14;
+        double s5 = a13 * a24 - a23 * a14;
+        double c5 = a33 * a44 - a43 * a34;
+        double c4 = a32 * a44 - a42 * a34;
+        double c3 = a32 * a43 - a42 * a33;
+        double c2 = a31 * a44 - a41 * a34;
+        double c1 = a31 * a43 - a41 * a33;
+        double c0 = a31 * a42 - a41 * a32;
+        double det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0)
+            throw new IllegalArgumentException("Matrix cannot be inverted");
+        double d = 1 / det;
+        return new Matrix4(
+                (a22 * c5 - a23 * c4 + a24 * c3) * d,
+                (-a21 * c5 + a23 * c2 - a24 * c1) * d,
+                (a21 * c4 - a22 * c2 + a24 * c0) * d,
+                (-a21 * c3 + a22 * c1 - a23 * c0) * d,
+
+                (-a12 * c5 + a13 * c4 - a14 * c3) * d,
+                (a11 * c5 - a13 * c2 + a14 * c1) * d,
+                (-a11 * c4 + a12 * c2 - a14 * c0) * d,
+                (a11 * c3 - a12 * c1 + a13 * c0) * d,
+
+                (a42 * s5 - a43 * s4 + a44 * s3) * d,
+                (-a41 * s5 + a43 * s2 - a44 * s1) * d,
+                (a41 * s4 - a42 * s2 + a44 * s0) * d,
+                (-a41 * s3 + a42 * s1 - a43 * s0) * d,
+
+                (-a32 * s5 + a33 * s4 - a34 * s3) * d,
+                (a31 * s5 - a33 * s2 + a34 * s1) * d,
+                (-a31 * s4 + a32 * s2 - a34 * s0) * d,
+                (a31 * s3 - a32 * s1 + a33 * s0) * d
+        );
+    }
+
     /**
      * Returns a matrix for scaling by x, y, and z.
      */
@@ -223,9 +309,13 @@ public record Matrix4(double a11, double a21, double a31, double a41,
      */
 
     private static final Map<String, JavaFunction> luaFunctions = new HashMap<>() {{
-        //TODO: Add an inverse function
         put("inverse", state -> {
-            state.pushJavaObject(this);
+            Matrix4 mat = state.checkJavaObject(1, Matrix4.class);
+            try {
+                state.pushJavaObject(mat.inverse());
+            } catch (IllegalArgumentException e) {
+                throw new LuaRuntimeException(e.getMessage());
+            }
             return 1;
         });
     }};
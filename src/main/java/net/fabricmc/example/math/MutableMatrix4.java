@@ -0,0 +1,201 @@
+package net.fabricmc.example.math;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A mutable 4x4 matrix of floats, for internal code which runs every frame.
+ * Matrix4 makes a new object for every operation, which adds up fast when it happens for every
+ * avatar every frame. This one changes itself instead.
+ *
+ * Operations have the same meaning as in Matrix4: a.translate(), a.rotateY() etc. apply the new
+ * transformation after the ones already in a. Every operation returns the matrix, so they can be chained.
+ * Affine matrices can be copied to and from the flat float arrays CompiledPartTree and TransformTexture
+ * use, as their top 3 rows.
+ *
+ * Lua scripts keep using Matrix4. Don't pass these to scripts, since they change under them.
+ */
+public final class MutableMatrix4 {
+
+    //Same naming as Matrix4, aRC is row R and column C
+    public float a11, a21, a31, a41;
+    public float a12, a22, a32, a42;
+    public float a13, a23, a33, a43;
+    public float a14, a24, a34, a44;
+
+    /**
+     * Creates an identity matrix.
+     */
+    public MutableMatrix4() {
+        identity();
+    }
+
+    public MutableMatrix4 identity() {
+        a11 = 1; a21 = 0; a31 = 0; a41 = 0;
+        a12 = 0; a22 = 1; a32 = 0; a42 = 0;
+        a13 = 0; a23 = 0; a33 = 1; a43 = 0;
+        a14 = 0; a24 = 0; a34 = 0; a44 = 1;
+        return this;
+    }
+
+    /**
+     * Sets this to an affine matrix stored as its top 3 rows, 12 floats from offset.
+     */
+    public MutableMatrix4 setAffineRows(float[] rows, int offset) {
+        a11 = rows[offset]; a12 = rows[offset + 1]; a13 = rows[offset + 2]; a14 = rows[offset + 3];
+        a21 = rows[offset + 4]; a22 = rows[offset + 5]; a23 = rows[offset + 6]; a24 = rows[offset + 7];
+        a31 = rows[offset + 8]; a32 = rows[offset + 9]; a33 = rows[offset + 10]; a34 = rows[offset + 11];
+        a41 = 0; a42 = 0; a43 = 0; a44 = 1;
+        return this;
+    }
+
+    /**
+     * Writes the top 3 rows of this matrix into the array, 12 floats from offset. The bottom row is left out,
+     * so this should be affine.
+     */
+    public void writeAffineRows(float[] rows, int offset) {
+        rows[offset] = a11; rows[offset + 1] = a12; rows[offset + 2] = a13; rows[offset + 3] = a14;
+        rows[offset + 4] = a21; rows[offset + 5] = a22; rows[offset + 6] = a23; rows[offset + 7] = a24;
+        rows[offset + 8] = a31; rows[offset + 9] = a32; rows[offset + 10] = a33; rows[offset + 11] = a34;
+    }
+
+    /**
+     * Translates by x, y and z after this matrix's transformation.
+     */
+    public MutableMatrix4 translate(float x, float y, float z) {
+        //Only the bottom row gets mixed into the others, so this is much cheaper than a full multiply
+        a11 += x * a41; a12 += x * a42; a13 += x * a43; a14 += x * a44;
+        a21 += y * a41; a22 += y * a42; a23 += y * a43; a24 += y * a44;
+        a31 += z * a41; a32 += z * a42; a33 += z * a43; a34 += z * a44;
+        return this;
+    }
+
+    /**
+     * Scales by x, y and z after this matrix's transformation.
+     */
+    public MutableMatrix4 scale(float x, float y, float z) {
+        a11 *= x; a12 *= x; a13 *= x; a14 *= x;
+        a21 *= y; a22 *= y; a23 *= y; a24 *= y;
+        a31 *= z; a32 *= z; a33 *= z; a34 *= z;
+        return this;
+    }
+
+    /**
+     * Translates by x, y and z before this matrix's transformation, so the translation gets transformed too.
+     */
+    public MutableMatrix4 preTranslate(float x, float y, float z) {
+        //Only the last column changes
+        a14 += a11 * x + a12 * y + a13 * z;
+        a24 += a21 * x + a22 * y + a23 * z;
+        a34 += a31 * x + a32 * y + a33 * z;
+        a44 += a41 * x + a42 * y + a43 * z;
+        return this;
+    }
+
+    /**
+     * Rotates about the y-axis after this matrix's transformation.
+     * @param radians The angle to rotate, in radians.
+     */
+    public MutableMatrix4 rotateY(float radians) {
+        float s = (float) Math.sin(radians), c = (float) Math.cos(radians);
+        //Mixes rows 1 and 3
+        float r11 = c * a11 + s * a31, r31 = c * a31 - s * a11;
+        float r12 = c * a12 + s * a32, r32 = c * a32 - s * a12;
+        float r13 = c * a13 + s * a33, r33 = c * a33 - s * a13;
+        float r14 = c * a14 + s * a34, r34 = c * a34 - s * a14;
+        a11 = r11; a31 = r31; a12 = r12; a32 = r32; a13 = r13; a33 = r33; a14 = r14; a34 = r34;
+        return this;
+    }
+
+    /**
+     * Rotates by a unit quaternion after this matrix's transformation.
+     */
+    public MutableMatrix4 rotate(float x, float y, float z, float w) {
+        //The rotation matrix of the quaternion, kept in locals so pose workers can call this at the same time
+        float xx = x * x, yy = y * y, zz = z * z;
+        float xy = x * y, xz = x * z, yz = y * z;
+        float wx = w * x, wy = w * y, wz = w * z;
+        float o11 = 1 - 2 * (yy + zz), o12 = 2 * (xy - wz), o13 = 2 * (xz + wy);
+        float o21 = 2 * (xy + wz), o22 = 1 - 2 * (xx + zz), o23 = 2 * (yz - wx);
+        float o31 = 2 * (xz - wy), o32 = 2 * (yz + wx), o33 = 1 - 2 * (xx + yy);
+
+        //Mixes rows 1, 2 and 3, leaving the bottom row alone
+        float r11 = o11 * a11 + o12 * a21 + o13 * a31, r21 = o21 * a11 + o22 * a21 + o23 * a31, r31 = o31 * a11 + o32 * a21 + o33 * a31;
+        float r12 = o11 * a12 + o12 * a22 + o13 * a32, r22 = o21 * a12 + o22 * a22 + o23 * a32, r32 = o31 * a12 + o32 * a22 + o33 * a32;
+        float r13 = o11 * a13 + o12 * a23 + o13 * a33, r23 = o21 * a13 + o22 * a23 + o23 * a33, r33 = o31 * a13 + o32 * a23 + o33 * a33;
+        float r14 = o11 * a14 + o12 * a24 + o13 * a34, r24 = o21 * a14 + o22 * a24 + o23 * a34, r34 = o31 * a14 + o32 * a24 + o33 * a34;
+        a11 = r11; a21 = r21; a31 = r31;
+        a12 = r12; a22 = r22; a32 = r32;
+        a13 = r13; a23 = r23; a33 = r33;
+        a14 = r14; a24 = r24; a34 = r34;
+        return this;
+    }
+
+    /**
+     * Sets this to scale, then rotate about Z, Y and X in that order (radians), then translate.
+     * The same as Matrix4.scale(...).multiply(rotateZ).multiply(rotateY).multiply(rotateX).multiply(translate),
+     * worked out directly rather than by multiplying matrices together.
+     */
+    public MutableMatrix4 setTRS(float tx, float ty, float tz, float rx, float ry, float rz, float sx, float sy, float sz) {
+        float sinX = (float) Math.sin(rx), cosX = (float) Math.cos(rx);
+        float sinY = (float) Math.sin(ry), cosY = (float) Math.cos(ry);
+        float sinZ = (float) Math.sin(rz), cosZ = (float) Math.cos(rz);
+        a11 = cosY * cosZ * sx;
+        a21 = (cosX * sinZ + sinX * sinY * cosZ) * sx;
+        a31 = (sinX * sinZ - cosX * sinY * cosZ) * sx;
+        a12 = -cosY * sinZ * sy;
+        a22 = (cosX * cosZ - sinX * sinY * sinZ) * sy;
+        a32 = (sinX * cosZ + cosX * sinY * sinZ) * sy;
+        a13 = sinY * sz;
+        a23 = -sinX * cosY * sz;
+        a33 = cosX * cosY * sz;
+        a14 = tx; a24 = ty; a34 = tz;
+        a41 = 0; a42 = 0; a43 = 0; a44 = 1;
+        return this;
+    }
+
+    /**
+     * Inverts this matrix in place, assuming it's affine (bottom row 0, 0, 0, 1).
+     * Much cheaper than a general inverse. If the matrix can't be inverted, it's left unchanged.
+     */
+    public MutableMatrix4 invertAffine() {
+        //Inverse of the 3x3 part from its cofactors
+        float c11 = a22 * a33 - a23 * a32;
+        float c12 = a23 * a31 - a21 * a33;
+        float c13 = a21 * a32 - a22 * a31;
+        float det = a11 * c11 + a12 * c12 + a13 * c13;
+        if (det == 0)
+            return this;
+        float invDet = 1 / det;
+        float i11 = c11 * invDet;
+        float i12 = (a13 * a32 - a12 * a33) * invDet;
+        float i13 = (a12 * a23 - a13 * a22) * invDet;
+        float i21 = c12 * invDet;
+        float i22 = (a11 * a33 - a13 * a31) * invDet;
+        float i23 = (a13 * a21 - a11 * a23) * invDet;
+        float i31 = c13 * invDet;
+        float i32 = (a12 * a31 - a11 * a32) * invDet;
+        float i33 = (a11 * a22 - a12 * a21) * invDet;
+        //The translation is undone by the inverted 3x3 part applied to -translation
+        float t1 = -(i11 * a14 + i12 * a24 + i13 * a34);
+        float t2 = -(i21 * a14 + i22 * a24 + i23 * a34);
+        float t3 = -(i31 * a14 + i32 * a24 + i33 * a34);
+
+        a11 = i11; a21 = i21; a31 = i31; a41 = 0;
+        a12 = i12; a22 = i22; a32 = i32; a42 = 0;
+        a13 = i13; a23 = i23; a33 = i33; a43 = 0;
+        a14 = t1; a24 = t2; a34 = t3; a44 = 1;
+        return this;
+    }
+
+    /**
+     * Writes this matrix into the buffer, column by column, starting at its position.
+     */
+    public void uploadToBuffer(ByteBuffer buf) {
+        buf
+                .putFloat(a11).putFloat(a21).putFloat(a31).putFloat(a41)
+                .putFloat(a12).putFloat(a22).putFloat(a32).putFloat(a42)
+                .putFloat(a13).putFloat(a23).putFloat(a33).putFloat(a43)
+                .putFloat(a14).putFloat(a24).putFloat(a34).putFloat(a44);
+    }
+
+}
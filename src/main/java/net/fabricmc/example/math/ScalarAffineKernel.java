@@ -0,0 +1,30 @@
+package net.fabricmc.example.math;
+
+/**
+ * The plain version of AffineBatchKernel, which composes one matrix at a time.
+ */
+public class ScalarAffineKernel extends AffineBatchKernel {
+
+    @Override
+    public void compose(float[] world, float[] local, int[] nodeOffsets, int[] parentOffsets, int from, int to) {
+        for (int i = from; i < to; i++)
+            composeOne(world, local, nodeOffsets[i], parentOffsets[i]);
+    }
+
+    /**
+     * world[o] = world[po] * local[o], for one pair of matrices.
+     */
+    static void composeOne(float[] world, float[] local, int o, int po) {
+        float l0 = local[o], l1 = local[o + 1], l2 = local[o + 2], l3 = local[o + 3];
+        float l4 = local[o + 4], l5 = local[o + 5], l6 = local[o + 6], l7 = local[o + 7];
+        float l8 = local[o + 8], l9 = local[o + 9], l10 = local[o + 10], l11 = local[o + 11];
+        for (int row = 0; row < 12; row += 4) {
+            float x = world[po + row], y = world[po + row + 1], z = world[po + row + 2], w = world[po + row + 3];
+            world[o + row] = x * l0 + y * l4 + z * l8;
+            world[o + row + 1] = x * l1 + y * l5 + z * l9;
+            world[o + row + 2] = x * l2 + y * l6 + z * l10;
+            world[o + row + 3] = x * l3 + y * l7 + z * l11 + w;
+        }
+    }
+
+}
@@ -19,6 +19,6 @@ public class EntityRendererMixin {
     private void testDrawing(Entity e, float f, float g, MatrixStack m, VertexConsumerProvider vcp, int l, CallbackInfo ci) {
         List<AvatarState> states = FiguaMod.AVATAR_STATE_MANAGER.getStatesFor(e);
         for (AvatarState state : states)
-            state.render(g);
+            state.queueRender(g);
     }
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+package net.fabricmc.example.rendering;
+
+import net.fabricmc.example.math.Vector3;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Vertex and index data for a mesh, flipped and ready to be uploaded into a VAO.
+ * Creating one doesn't touch OpenGL, so it can be built off the render thread.
+ * @param vertexData The vertex data, laid out according to layout.
+ * @param indexData The index data, in the native byte order.
+ * @param indexType The GL type of each index, either GL_UNSIGNED_SHORT or GL_UNSIGNED_INT.
+ * @param layout The layout of the vertex data.
+ * @param positionOffset Added to positions after scaling them, to get back to model space.
+ * @param positionScale Multiplied with positions to get back to model space. Only the compact layout
+ *                      stores positions relative to the mesh bounds, so for others this is just ONE.
+ */
+public record MeshData(ByteBuffer vertexData, ByteBuffer indexData, int indexType, VertexLayout layout,
+                       Vector3 positionOffset, Vector3 positionScale) {
+
+    public int vertexCount() {
+        return vertexData.remaining() / layout.getBytesPerVertex();
+    }
+
+    public int indexCount() {
+        return indexData.remaining() / (indexType == GL_UNSIGNED_SHORT ? Short.BYTES : Integer.BYTES);
+    }
+
+}
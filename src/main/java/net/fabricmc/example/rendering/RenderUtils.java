@@ -6,9 +6,12 @@ import net.fabricmc.example.mixin.GameRendererAccessor;
 import net.fabricmc.example.rendering.shader.FiguaShader;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.render.GameRenderer;
+import org.lwjgl.opengl.GL;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.lwjgl.opengl.GL32.*;
 
@@ -17,7 +20,37 @@ import static org.lwjgl.opengl.GL32.*;
  */
 public class RenderUtils {
 
+    /**
+     * Whether avatars use the compact vertex layout instead of the full one.
+     * The compact layout is 16 bytes per vertex rather than 38. It drops the color,
+     * which is always white, and replaces the normal with the direction the face points.
+     */
+    public static final boolean COMPACT_VERTICES = true;
+
+    /**
+     * The attribute location of the first per-instance attribute.
+     * Leaves room below it for the vertex attributes of any layout.
+     */
+    public static final int INSTANCE_ATTRIBUTE_LOCATION = 8;
+
+    /**
+     * Whether transforms are stored as the top 3 rows of the matrix instead of all 4.
+     * Parts are only ever moved, rotated and scaled, so the bottom row is always 0, 0, 0, 1.
+     */
+    public static final boolean AFFINE_TRANSFORMS = true;
+
+    /**
+     * Whether transforms are stored as half floats instead of full floats, halving their size again.
+     * Halves only keep about 3 decimal digits, so parts far from the origin visibly snap around.
+     * Off by default, since a script can move parts anywhere.
+     */
+    public static final boolean HALF_PRECISION_TRANSFORMS = false;
+
     private static VertexLayout defaultVertexLayout;
+    private static VertexLayout instanceLayout;
+    private static Boolean textureBuffersSupported;
+    private static Boolean persistentMappingSupported;
+    private static Boolean textureBufferRangesSupported;
     private static FiguaShader defaultFiguaShader;
 
     /**
@@ -26,16 +59,84 @@ public class RenderUtils {
      */
     public static VertexLayout defaultVertexLayout() {
         if (defaultVertexLayout == null) {
-            defaultVertexLayout = new VertexLayout()
-                    .attribute(GL_FLOAT, 3, false, false) //Position
-                    .attribute(GL_UNSIGNED_BYTE, 4, true, false) //Color
-                    .attribute(GL_FLOAT, 2, false, false) //Texture UV
-                    .attribute(GL_FLOAT, 3, false, false) //Normal
-                    .attribute(GL_SHORT, 1, false, true); //Transform index
+            if (COMPACT_VERTICES)
+                defaultVertexLayout = compactVertexLayout();
+            else
+                defaultVertexLayout = fullVertexLayout();
         }
         return defaultVertexLayout;
     }
 
+    /**
+     * The compact vertex layout. Positions are stored relative to the bounds of the mesh,
+     * so the shader needs the PositionOffset and PositionScale uniforms to undo that.
+     */
+    private static VertexLayout compactVertexLayout() {
+        return new VertexLayout()
+                .attribute(GL_UNSIGNED_SHORT, 4, true, false) //Position in mesh bounds, w is padding
+                .attribute(GL_UNSIGNED_SHORT, 2, true, false) //Texture UV
+                .attribute(GL_UNSIGNED_SHORT, 2, false, true); //Transform index, face direction
+    }
+
+    /**
+     * The full vertex layout, with everything stored as-is.
+     */
+    private static VertexLayout fullVertexLayout() {
+        return new VertexLayout()
+                .attribute(GL_FLOAT, 3, false, false) //Position
+                .attribute(GL_UNSIGNED_BYTE, 4, true, false) //Color
+                .attribute(GL_FLOAT, 2, false, false) //Texture UV
+                .attribute(GL_FLOAT, 3, false, false) //Normal
+                .attribute(GL_SHORT, 1, false, true); //Transform index
+    }
+
+    /**
+     * Gets the layout of the per-instance data used when drawing many AvatarStates at once.
+     * Lazily calculates when first needed, then caches the result.
+     */
+    public static VertexLayout instanceLayout() {
+        if (instanceLayout == null) {
+            instanceLayout = new VertexLayout()
+                    .attribute(GL_FLOAT, 4, false, false) //ModelView matrix, column 1
+                    .attribute(GL_FLOAT, 4, false, false) //Column 2
+                    .attribute(GL_FLOAT, 4, false, false) //Column 3
+                    .attribute(GL_FLOAT, 4, false, false) //Column 4
+                    .attribute(GL_INT, 1, false, true); //Offset into the transform texture
+        }
+        return instanceLayout;
+    }
+
+    /**
+     * Whether TransformTextures can be stored in texture buffers. They're core since OpenGL 3.1,
+     * so this should always be true, but we check anyway in case of an odd driver.
+     * Checks the first time it's called, then caches the result.
+     */
+    public static boolean textureBuffersSupported() {
+        if (textureBuffersSupported == null)
+            textureBuffersSupported = GL.getCapabilities().OpenGL31;
+        return textureBuffersSupported;
+    }
+
+    /**
+     * Whether buffers can be persistently mapped, which needs OpenGL 4.4 or ARB_buffer_storage.
+     * Checks the first time it's called, then caches the result.
+     */
+    public static boolean persistentMappingSupported() {
+        if (persistentMappingSupported == null)
+            persistentMappingSupported = GL.getCapabilities().OpenGL44 || GL.getCapabilities().GL_ARB_buffer_storage;
+        return persistentMappingSupported;
+    }
+
+    /**
+     * Whether a texture buffer can view just part of a buffer, which needs OpenGL 4.3 or ARB_texture_buffer_range.
+     * Checks the first time it's called, then caches the result.
+     */
+    public static boolean textureBufferRangesSupported() {
+        if (textureBufferRangesSupported == null)
+            textureBufferRangesSupported = GL.getCapabilities().OpenGL43 || GL.getCapabilities().GL_ARB_texture_buffer_range;
+        return textureBufferRangesSupported;
+    }
+
     /**
      * Gets the default figua shader.
      * Lazily calculates when first needed, then caches the result.
@@ -45,7 +146,15 @@ public class RenderUtils {
         if (defaultFiguaShader == null) {
             try {
                 Path path = FiguaMod.getAssetPath().resolve("shaders");
-                defaultFiguaShader = FiguaShader.fromResources(path, "default", false);
+                //Pick the permutation of the shader matching the vertex layout and transform texture backend
+                List<String> defines = new ArrayList<>();
+                if (COMPACT_VERTICES)
+                    defines.add("COMPACT_VERTICES");
+                if (textureBuffersSupported())
+                    defines.add("TRANSFORM_BUFFER");
+                if (AFFINE_TRANSFORMS)
+                    defines.add("AFFINE_TRANSFORMS");
+                defaultFiguaShader = FiguaShader.fromResources(path, "default", false, defines.toArray(new String[0]));
                 defaultFiguaShader.setupTextureUnitBinding("MainTexture", 0);
                 defaultFiguaShader.setupTextureUnitBinding("TransformTexture", 1);
                 //defaultFiguaShader.setUniform("ModelViewMat", Matrix4.rotateY(Math.toRadians(45)));
@@ -1,10 +1,10 @@
 package net.fabricmc.example.rendering;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import net.fabricmc.example.math.Vector3;
 import net.minecraft.client.render.BufferRenderer;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.GL32.*;
 
@@ -16,11 +16,24 @@ public class VAO {
     private final int vaoHandle;
     private final int vboHandle;
     private final int eboHandle;
+    //Holds the per-instance data
+    private final int instanceVboHandle;
     private final int numIndices;
+    private final int indexType;
+    private final Vector3 positionOffset;
+    private final Vector3 positionScale;
 
-    public VAO(ByteBuffer vertexData, IntBuffer indexData, VertexLayout layout) {
+    /**
+     * Uploads the given mesh into a new VAO. The mesh should be built beforehand,
+     * off the render thread if possible, so this only has to do the GL calls.
+     */
+    public VAO(MeshData mesh) {
+        ByteBuffer vertexData = mesh.vertexData();
         BufferRenderer.unbindAll();
-        numIndices = indexData.remaining();
+        numIndices = mesh.indexCount();
+        indexType = mesh.indexType();
+        positionOffset = mesh.positionOffset();
+        positionScale = mesh.positionScale();
 
         vaoHandle = GlStateManager._glGenVertexArrays();
         GlStateManager._glBindVertexArray(vaoHandle);
@@ -31,9 +44,14 @@ public class VAO {
 
         eboHandle = GlStateManager._glGenBuffers();
         GlStateManager._glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, eboHandle);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indexData, GL_STATIC_DRAW); //GlStateManager doesn't like non-ByteBuffers
+        GlStateManager._glBufferData(GL_ELEMENT_ARRAY_BUFFER, mesh.indexData(), GL_STATIC_DRAW);
+
+        mesh.layout().setupAttribPointers();
 
-        layout.setupAttribPointers();
+        //Per-instance data gets its own buffer, which is refilled every time we draw
+        instanceVboHandle = GlStateManager._glGenBuffers();
+        GlStateManager._glBindBuffer(GL_ARRAY_BUFFER, instanceVboHandle);
+        RenderUtils.instanceLayout().setupAttribPointers(RenderUtils.INSTANCE_ATTRIBUTE_LOCATION, 1);
 
         GlStateManager._glBindVertexArray(0);
     }
@@ -45,9 +63,26 @@ public class VAO {
     public void close() {
         GlStateManager._glDeleteBuffers(vboHandle);
         GlStateManager._glDeleteBuffers(eboHandle);
+        GlStateManager._glDeleteBuffers(instanceVboHandle);
         GlStateManager._glDeleteVertexArrays(vaoHandle);
     }
 
+    /**
+     * Gets the offset to add to vertex positions, to turn them back into model space.
+     * Should be uploaded to the PositionOffset uniform before drawing.
+     */
+    public Vector3 getPositionOffset() {
+        return positionOffset;
+    }
+
+    /**
+     * Gets the scale to multiply vertex positions by, to turn them back into model space.
+     * Should be uploaded to the PositionScale uniform before drawing.
+     */
+    public Vector3 getPositionScale() {
+        return positionScale;
+    }
+
     /**
      * Binds this VAO.
      */
@@ -62,7 +97,22 @@ public class VAO {
         int lastVAO = GlStateManager._getInteger(GL_VERTEX_ARRAY_BINDING);
         BufferRenderer.unbindAll();
         bind();
-        GlStateManager._drawElements(GL_TRIANGLES, numIndices, GL_UNSIGNED_INT, 0);
+        GlStateManager._drawElements(GL_TRIANGLES, numIndices, indexType, 0);
+        GlStateManager._glBindVertexArray(lastVAO);
+    }
+
+    /**
+     * Binds and draws many instances of this VAO to the current framebuffer, with a single instanced draw call.
+     * @param instanceData The per-instance data, laid out according to RenderUtils.instanceLayout().
+     * @param instanceCount The number of instances in instanceData.
+     */
+    public void drawInstanced(ByteBuffer instanceData, int instanceCount) {
+        int lastVAO = GlStateManager._getInteger(GL_VERTEX_ARRAY_BINDING);
+        BufferRenderer.unbindAll();
+        bind();
+        GlStateManager._glBindBuffer(GL_ARRAY_BUFFER, instanceVboHandle);
+        GlStateManager._glBufferData(GL_ARRAY_BUFFER, instanceData, GL_STREAM_DRAW);
+        glDrawElementsInstanced(GL_TRIANGLES, numIndices, indexType, 0, instanceCount);
         GlStateManager._glBindVertexArray(lastVAO);
     }
 }
@@ -1,6 +1,7 @@
 package net.fabricmc.example.rendering;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import org.lwjgl.opengl.GL33;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -40,7 +41,7 @@ public class VertexLayout {
         data.add(type);
         data.add(normalized ? 1 : 0);
         data.add(integer ? 1 : 0);
-        bytesPerVertex += count * typesToBytes.get(type);
+        bytesPerVertex += attributeBytes(type, count);
         attributeCount++;
         return this;
     }
@@ -50,16 +51,30 @@ public class VertexLayout {
      * once per VAO created with this layout.
      */
     public void setupAttribPointers() {
+        setupAttribPointers(0, 0);
+    }
+
+    /**
+     * Sets up attrib pointers for the currently bound buffer, starting from a given location.
+     * Should be called only once per VAO created with this layout.
+     * @param firstLocation The location of the first attribute in this layout.
+     * @param divisor The attribute divisor. 0 advances once per vertex, 1 advances once per instance.
+     *                Anything other than 0 needs OpenGL 3.3, which the default shader needs anyway.
+     */
+    public void setupAttribPointers(int firstLocation, int divisor) {
         int offset = 0;
         for (int i = 0; i < attributeCount*4; i+=4) {
             int count = data.get(i);
             int type = data.get(i + 1);
+            int location = firstLocation + i / 4;
             if (data.get(i + 3) == 0)
-                GlStateManager._vertexAttribPointer(i / 4, count, type, data.get(i+2) == 1, bytesPerVertex, offset);
+                GlStateManager._vertexAttribPointer(location, count, type, data.get(i+2) == 1, bytesPerVertex, offset);
             else
-                GlStateManager._vertexAttribIPointer(i / 4, count, type, bytesPerVertex, offset);
-            GlStateManager._enableVertexAttribArray(i / 4);
-            offset += VertexLayout.typesToBytes.get(type) * count;
+                GlStateManager._vertexAttribIPointer(location, count, type, bytesPerVertex, offset);
+            GlStateManager._enableVertexAttribArray(location);
+            if (divisor != 0)
+                GL33.glVertexAttribDivisor(location, divisor);
+            offset += attributeBytes(type, count);
         }
     }
 
@@ -70,6 +85,16 @@ public class VertexLayout {
         return bytesPerVertex;
     }
 
+    /**
+     * Gets the number of bytes taken up by one attribute of the given type and count.
+     * Packed types hold all of their components in a single int, so they don't scale with count.
+     */
+    private static int attributeBytes(int type, int count) {
+        if (type == GL_UNSIGNED_INT_2_10_10_10_REV || type == GL33.GL_INT_2_10_10_10_REV)
+            return Integer.BYTES;
+        return typesToBytes.get(type) * count;
+    }
+
     /**
      * A static map that keeps track of the number of bytes in each GL type.
      */
@@ -78,6 +103,7 @@ public class VertexLayout {
         put(GL_UNSIGNED_BYTE, Byte.BYTES);
         put(GL_SHORT, Short.BYTES);
         put(GL_UNSIGNED_SHORT, Short.BYTES);
+        put(GL_HALF_FLOAT, Short.BYTES);
         put(GL_FLOAT, Float.BYTES);
         put(GL_INT, Integer.BYTES);
         put(GL_UNSIGNED_INT, Integer.BYTES);
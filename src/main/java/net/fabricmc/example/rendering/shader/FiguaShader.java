@@ -125,15 +125,30 @@ public class FiguaShader {
      * @param folderPath The path to the folder containing the shader files
      * @param name The name of the shader files, excluding suffixes (.vert, .frag, .geom)
      * @param includeGeometry Whether this should use a geometry shader or not
+     * @param defines Names to #define at the top of each shader, to pick between permutations of it
      * @return A new FiguaShader constructed from the resources given
      */
-    public static FiguaShader fromResources(Path folderPath, String name, boolean includeGeometry) throws IOException {
-        String vertSource = Files.readString(folderPath.resolve(name+".vert"));
+    public static FiguaShader fromResources(Path folderPath, String name, boolean includeGeometry, String... defines) throws IOException {
+        String vertSource = addDefines(Files.readString(folderPath.resolve(name+".vert")), defines);
         String geomSource = null;
         if (includeGeometry)
-            geomSource = Files.readString(folderPath.resolve(name+".geom"));
-        String fragSource = Files.readString(folderPath.resolve(name+".frag"));
+            geomSource = addDefines(Files.readString(folderPath.resolve(name+".geom")), defines);
+        String fragSource = addDefines(Files.readString(folderPath.resolve(name+".frag")), defines);
         return new FiguaShader(vertSource, geomSource, fragSource);
     }
 
+    /**
+     * Inserts a #define for each of the given names into the shader source.
+     * They go right after the #version line, since that has to come first.
+     */
+    private static String addDefines(String source, String[] defines) {
+        if (defines.length == 0)
+            return source;
+        StringBuilder defineLines = new StringBuilder();
+        for (String define : defines)
+            defineLines.append("#define ").append(define).append('\n');
+        int versionEnd = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+        return source.substring(0, versionEnd) + defineLines + source.substring(versionEnd);
+    }
+
 }
@@ -0,0 +1,258 @@
+package net.fabricmc.example.rendering.textures;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import net.fabricmc.example.math.MathUtils;
+import net.fabricmc.example.rendering.RenderUtils;
+import org.lwjgl.opengl.ARBBufferStorage;
+import org.lwjgl.opengl.ARBTextureBufferRange;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL43;
+import org.lwjgl.opengl.GL44;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * A TransformTexture stored in a texture buffer, which the shader reads as a samplerBuffer.
+ * The matrices are laid out one after another, so there's no 2D size limit and uploads
+ * never need splitting up into rows.
+ *
+ * The matrices are kept in a ring of REGION_COUNT regions, each a whole copy of them with its own texture.
+ * Each flush writes into the next region while the GPU can still be reading the ones before it, and the
+ * shader reads whichever region was written last. Fences placed after drawing make sure a region is done
+ * with before it gets written again, which only waits when the GPU is a whole ring behind.
+ * Where texture buffer ranges are supported the regions share one buffer, otherwise they each get their own.
+ *
+ * Where buffer storage is supported, the buffer is mapped persistently and matrices get
+ * written straight into it, with no upload call at all. Otherwise the region is mapped for each flush,
+ * unsynchronized since its fence already says the GPU is done with it, so the driver never has to stall or copy.
+ */
+public class TransformBufferTexture extends TransformTexture {
+
+    private static final int MAP_FLAGS = GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+
+    //How many copies of the matrices there are. Three lets the GPU be two frames behind without us waiting on it.
+    private static final int REGION_COUNT = 3;
+    //Regions keep at most this many ranges they're missing, before they're merged into one
+    private static final int MAX_STALE_RANGES = 32;
+
+    private static int maxCapacity;
+
+    //One buffer shared by every region, or one buffer for each of them
+    private final int[] bufferHandles;
+    //For each region, the texture viewing it and where it starts in its buffer, in bytes
+    private final int[] textureHandles = new int[REGION_COUNT];
+    private final long[] regionOffsets = new long[REGION_COUNT];
+    private final long regionSize;
+    //The persistently mapped contents of each region, or null if they aren't mapped
+    private final ByteBuffer[] mappedRegions;
+    //Without persistent mapping, the current region while it's mapped during a flush
+    private ByteBuffer flushMapping;
+    //Fence placed after the last draw which read each region, 0 if there isn't one pending
+    private final long[] drawFences = new long[REGION_COUNT];
+
+    //The region the shader reads from, which is the one the last flush wrote into
+    private int currentRegion;
+
+    //Ranges of matrices which were written into other regions since each region was last written,
+    //packed as (first << 32) | last like TransformTexture's dirty ranges. They're caught up when the region's turn comes.
+    private final long[][] staleRanges = new long[REGION_COUNT][MAX_STALE_RANGES];
+    private final int[] staleCounts = new int[REGION_COUNT];
+    //Ranges caught up this flush, counted as uploads
+    private int catchUpCount;
+
+    public TransformBufferTexture(int numTransforms) {
+        //The max isn't a power of two, so rounding up mustn't go past it when numTransforms alone fits
+        super(Math.min(MathUtils.nextPowerOfTwo(Math.max(numTransforms, 1)), Math.max(maxCapacity(), numTransforms)));
+        int capacity = getCapacity();
+        if (capacity > maxCapacity())
+            throw new IllegalStateException("Bro how do u have over " + maxCapacity() + " model parts what r u doing");
+
+        regionSize = (long) capacity * BYTES_PER_TRANSFORM;
+        boolean sharedBuffer = RenderUtils.textureBufferRangesSupported();
+        long regionStride = 0;
+        if (sharedBuffer) {
+            //Texture buffer ranges have to start on a multiple of this
+            long alignment = Math.max(GlStateManager._getInteger(GL43.GL_TEXTURE_BUFFER_OFFSET_ALIGNMENT), 1);
+            regionStride = (regionSize + alignment - 1) / alignment * alignment;
+        }
+        for (int i = 0; i < REGION_COUNT; i++)
+            regionOffsets[i] = i * regionStride;
+
+        bufferHandles = new int[sharedBuffer ? 1 : REGION_COUNT];
+        mappedRegions = RenderUtils.persistentMappingSupported() ? new ByteBuffer[REGION_COUNT] : null;
+        long bufferSize = sharedBuffer ? regionStride * (REGION_COUNT - 1) + regionSize : regionSize;
+        for (int b = 0; b < bufferHandles.length; b++) {
+            bufferHandles[b] = GlStateManager._glGenBuffers();
+            GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, bufferHandles[b]);
+            if (mappedRegions != null) {
+                if (GL.getCapabilities().OpenGL44)
+                    GL44.glBufferStorage(GL_TEXTURE_BUFFER, bufferSize, MAP_FLAGS);
+                else
+                    ARBBufferStorage.glBufferStorage(GL_TEXTURE_BUFFER, bufferSize, MAP_FLAGS);
+                ByteBuffer mapped = glMapBufferRange(GL_TEXTURE_BUFFER, 0, bufferSize, MAP_FLAGS);
+                //Split the mapping up into the regions it holds
+                for (int i = 0; i < REGION_COUNT; i++) {
+                    if (bufferOf(i) == b)
+                        mappedRegions[i] = mapped.slice((int) regionOffsets[i], (int) regionSize);
+                }
+            } else {
+                glBufferData(GL_TEXTURE_BUFFER, bufferSize, GL_DYNAMIC_DRAW);
+            }
+        }
+        GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, 0);
+
+        //Every region starts out with the mirror's contents, and gets a texture which is just a view of it
+        for (int i = 0; i < REGION_COUNT; i++) {
+            if (mappedRegions != null) {
+                writeRegion(i, 0, mirror);
+            } else {
+                GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, bufferHandles[bufferOf(i)]);
+                glBufferSubData(GL_TEXTURE_BUFFER, regionOffsets[i], mirror);
+                GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, 0);
+            }
+            textureHandles[i] = GlStateManager._genTexture();
+            glBindTexture(GL_TEXTURE_BUFFER, textureHandles[i]);
+            if (!sharedBuffer)
+                glTexBuffer(GL_TEXTURE_BUFFER, INTERNAL_FORMAT, bufferHandles[i]);
+            else if (GL.getCapabilities().OpenGL43)
+                GL43.glTexBufferRange(GL_TEXTURE_BUFFER, INTERNAL_FORMAT, bufferHandles[0], regionOffsets[i], regionSize);
+            else
+                ARBTextureBufferRange.glTexBufferRange(GL_TEXTURE_BUFFER, INTERNAL_FORMAT, bufferHandles[0], regionOffsets[i], regionSize);
+        }
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * The largest number of matrices a texture buffer can hold, which depends on the GPU.
+     * Checks the first time it's called, then caches the result.
+     */
+    public static int maxCapacity() {
+        if (maxCapacity == 0)
+            maxCapacity = GlStateManager._getInteger(GL_MAX_TEXTURE_BUFFER_SIZE) / TEXELS_PER_TRANSFORM;
+        return maxCapacity;
+    }
+
+    @Override
+    public void bind(int textureUnit) {
+        GlStateManager._activeTexture(GL_TEXTURE0 + textureUnit);
+        glBindTexture(GL_TEXTURE_BUFFER, textureHandles[currentRegion]);
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < REGION_COUNT; i++) {
+            if (drawFences[i] != 0)
+                glDeleteSync(drawFences[i]);
+            GlStateManager._deleteTexture(textureHandles[i]);
+        }
+        for (int bufferHandle : bufferHandles) {
+            if (mappedRegions != null) {
+                GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, bufferHandle);
+                glUnmapBuffer(GL_TEXTURE_BUFFER);
+                GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, 0);
+            }
+            GlStateManager._glDeleteBuffers(bufferHandle);
+        }
+    }
+
+    @Override
+    protected void beginUploads() {
+        //Move on to the oldest region, waiting in case the GPU could still be reading it
+        currentRegion = (currentRegion + 1) % REGION_COUNT;
+        waitForDraws(currentRegion);
+        if (mappedRegions == null) {
+            //Unsynchronized, since the fence already told us the GPU is done with this region
+            GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, bufferHandles[bufferOf(currentRegion)]);
+            flushMapping = glMapBufferRange(GL_TEXTURE_BUFFER, regionOffsets[currentRegion], regionSize,
+                    GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+        }
+
+        //Catch it up on whatever other regions got since it was last written. The mirror already has all of it.
+        catchUpCount = staleCounts[currentRegion];
+        long[] stale = staleRanges[currentRegion];
+        for (int i = 0; i < catchUpCount; i++) {
+            int first = (int) (stale[i] >>> 32);
+            int last = (int) stale[i];
+            mirror.limit((last + 1) * BYTES_PER_TRANSFORM).position(first * BYTES_PER_TRANSFORM);
+            writeRegion(currentRegion, first, mirror);
+            mirror.clear();
+        }
+        staleCounts[currentRegion] = 0;
+    }
+
+    @Override
+    protected int upload(int firstIndex, int lastIndex, ByteBuffer data) {
+        writeRegion(currentRegion, firstIndex, data);
+        for (int i = 0; i < REGION_COUNT; i++) {
+            if (i != currentRegion)
+                addStaleRange(i, firstIndex, lastIndex);
+        }
+        return 1;
+    }
+
+    @Override
+    protected int finishUploads() {
+        if (flushMapping != null) {
+            glUnmapBuffer(GL_TEXTURE_BUFFER);
+            GlStateManager._glBindBuffer(GL_TEXTURE_BUFFER, 0);
+            flushMapping = null;
+        }
+        return catchUpCount;
+    }
+
+    @Override
+    public void afterDraw() {
+        if (drawFences[currentRegion] != 0)
+            glDeleteSync(drawFences[currentRegion]);
+        drawFences[currentRegion] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /**
+     * Copies packed matrices into a region. Without persistent mapping, that has to be the current one during a flush.
+     * @param firstIndex The index of the first matrix in data.
+     * @param data The packed matrices, from the buffer's position up to its limit.
+     */
+    private void writeRegion(int region, int firstIndex, ByteBuffer data) {
+        ByteBuffer target = mappedRegions != null ? mappedRegions[region] : flushMapping;
+        target.put(firstIndex * BYTES_PER_TRANSFORM, data, data.position(), data.remaining());
+    }
+
+    /**
+     * Waits until the GPU has finished every draw which read from a region.
+     */
+    private void waitForDraws(int region) {
+        if (drawFences[region] == 0)
+            return;
+        glClientWaitSync(drawFences[region], GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L);
+        glDeleteSync(drawFences[region]);
+        drawFences[region] = 0;
+    }
+
+    /**
+     * Remembers that a region is missing a range of matrices. Once it has too many ranges,
+     * they're merged into one covering all of them, which copies more but keeps this bounded.
+     */
+    private void addStaleRange(int region, int firstIndex, int lastIndex) {
+        long[] stale = staleRanges[region];
+        int count = staleCounts[region];
+        if (count == MAX_STALE_RANGES) {
+            int first = firstIndex, last = lastIndex;
+            for (int i = 0; i < count; i++) {
+                first = Math.min(first, (int) (stale[i] >>> 32));
+                last = Math.max(last, (int) stale[i]);
+            }
+            stale[0] = ((long) first << 32) | (last & 0xFFFFFFFFL);
+            staleCounts[region] = 1;
+            return;
+        }
+        stale[count] = ((long) firstIndex << 32) | (lastIndex & 0xFFFFFFFFL);
+        staleCounts[region] = count + 1;
+    }
+
+    private int bufferOf(int region) {
+        return bufferHandles.length == 1 ? 0 : region;
+    }
+
+}
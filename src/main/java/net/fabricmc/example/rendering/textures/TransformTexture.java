@@ -1,114 +1,319 @@
 package net.fabricmc.example.rendering.textures;
 
-import com.mojang.blaze3d.platform.GlStateManager;
-import com.mojang.blaze3d.systems.RenderSystem;
 import net.fabricmc.example.math.MathUtils;
+import net.fabricmc.example.math.Matrix4;
+import net.fabricmc.example.math.MutableMatrix4;
+import net.fabricmc.example.rendering.RenderUtils;
 import net.minecraft.client.MinecraftClient;
 import org.lwjgl.BufferUtils;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.lwjgl.opengl.GL32.*;
 
 /**
  * A texture which holds data about the transforms of an AvatarState.
+ * Each transform is a matrix, stored as either 4 texels holding its columns, or as 3 texels holding its
+ * top 3 rows when RenderUtils.AFFINE_TRANSFORMS is on. It's followed by 3 texels holding the rows of its
+ * normal matrix, which is worked out here once per transform rather than in the shader for every vertex. Texels are RGBA32F, or RGBA16F with RenderUtils.HALF_PRECISION_TRANSFORMS.
+ * Get one with create(), which picks whichever backend works best on this GPU.
+ *
+ * Matrices are written into a copy of the texture kept on the CPU, and the ranges which
+ * changed are remembered. flush() then uploads all of them at once, merging ranges which
+ * are close together, so scattered changes don't each turn into their own upload.
  */
-public class TransformTexture {
-
-    //The maximum size of a transform texture is 256x256, translating to 16384 parts in your model.
-    //Groups don't count towards this limit, meaning you'd have to be truly insane to break it with normal usage.
-    public static final int MAX_SIZE = 256;
-    //The OpenGL handle for this texture object
-    private final int handle;
-    //A privately maintained buffer for copying data to the texture.
-    private final FloatBuffer copyBuffer;
-
-    public TransformTexture(int numTransforms) {
-        //We need 4 pixels per transform we're storing, since each pixel is 4 floats. 4 pixels == 16 floats == 1 matrix
-        //Did power of 2 because I felt like it, probably not a noticeable difference but w/e
-        int numPixels = MathUtils.nextPowerOfTwo(numTransforms * 4);
-        if (numPixels > MAX_SIZE*MAX_SIZE) {
-            throw new IllegalStateException("Bro how do u have over " + MAX_SIZE*MAX_SIZE/4 + " model parts what r u doing");
+public abstract class TransformTexture {
+
+    //Dirty ranges with fewer than this many clean matrices between them get uploaded together.
+    //Uploading a few extra matrices is cheaper than making another upload call.
+    private static final int MERGE_GAP = 8;
+
+    //How far from rigid a matrix can be, relative to its scale, and still have its normals transformed by itself
+    private static final float RIGID_TOLERANCE = 1e-4f;
+
+    //The packed format of each transform, which the shader has to agree with.
+    //The matrix comes first, then its normal matrix as 3 more texels.
+    public static final int TEXELS_PER_TRANSFORM = (RenderUtils.AFFINE_TRANSFORMS ? 3 : 4) + 3;
+    protected static final int BYTES_PER_TEXEL = RenderUtils.HALF_PRECISION_TRANSFORMS ? 4 * 2 : 4 * Float.BYTES;
+    protected static final int BYTES_PER_TRANSFORM = TEXELS_PER_TRANSFORM * BYTES_PER_TEXEL;
+    protected static final int INTERNAL_FORMAT = RenderUtils.HALF_PRECISION_TRANSFORMS ? GL_RGBA16F : GL_RGBA32F;
+    protected static final int PIXEL_TYPE = RenderUtils.HALF_PRECISION_TRANSFORMS ? GL_HALF_FLOAT : GL_FLOAT;
+
+    //Upload counters for the frame in progress, and for the last finished frame
+    private static int uploadCount, uploadedBytes;
+    private static int lastFrameUploadCount, lastFrameUploadedBytes;
+
+    private final int capacity;
+    //The CPU-side copy of the whole texture, already in the packed format
+    protected final ByteBuffer mirror;
+    //For converting Matrix4s, so they can share the float[] path
+    private final float[] scratchRows = new float[12];
+    //For inverting transforms which aren't rigid. One per thread, since trees sharing a texture write to it at the same time.
+    private static final ThreadLocal<MutableMatrix4> INVERSE_SCRATCH = ThreadLocal.withInitial(MutableMatrix4::new);
+
+    //Ranges of matrix indices which changed since the last flush.
+    //Each one is packed into a long as (first << 32) | last, so they sort by first index.
+    private long[] dirtyRanges = new long[16];
+    private int dirtyCount;
+
+    /**
+     * @param capacity The number of matrices this texture holds. The mirror starts out full of identity matrices.
+     */
+    protected TransformTexture(int capacity) {
+        this.capacity = capacity;
+        mirror = BufferUtils.createByteBuffer(capacity * BYTES_PER_TRANSFORM);
+        float[] identity = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0};
+        for (int i = 0; i < capacity; i++)
+            writeTransform(i, identity, 0);
+    }
+
+    /**
+     * Creates a new TransformTexture with room for at least numTransforms matrices.
+     * Uses a texture buffer when they're supported, and a 2D texture otherwise.
+     * The default shader has to agree on which one it reads from, see RenderUtils.defaultFiguaShader().
+     */
+    public static TransformTexture create(int numTransforms) {
+        if (RenderUtils.textureBuffersSupported())
+            return new TransformBufferTexture(numTransforms);
+        return new TransformTexture2D(numTransforms);
+    }
+
+    /**
+     * Gets the largest number of matrices a TransformTexture can hold on this GPU.
+     */
+    public static int maxCapacity() {
+        if (RenderUtils.textureBuffersSupported())
+            return TransformBufferTexture.maxCapacity();
+        return TransformTexture2D.MAX_SIZE * TransformTexture2D.MAX_SIZE / TEXELS_PER_TRANSFORM;
+    }
+
+    public abstract void bind(int textureUnit);
+
+    public abstract void close();
+
+    /**
+     * Returns the number of matrices this texture can hold.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the matrix at the given index. It reaches the GPU on the next flush().
+     * Only the top 3 rows are used, since transforms are always affine.
+     */
+    public void setTransform(int index, Matrix4 m) {
+        float[] rows = scratchRows;
+        rows[0] = (float) m.a11(); rows[1] = (float) m.a12(); rows[2] = (float) m.a13(); rows[3] = (float) m.a14();
+        rows[4] = (float) m.a21(); rows[5] = (float) m.a22(); rows[6] = (float) m.a23(); rows[7] = (float) m.a24();
+        rows[8] = (float) m.a31(); rows[9] = (float) m.a32(); rows[10] = (float) m.a33(); rows[11] = (float) m.a34();
+        setTransform(index, rows, 0);
+    }
+
+    /**
+     * Sets the matrix at the given index, from an affine matrix stored as its top 3 rows.
+     * Writes straight into the mirror, without creating a Matrix4.
+     * @param rows The array holding the matrix.
+     * @param offset Where in the array the matrix starts. It takes up 12 floats from there.
+     */
+    public void setTransform(int index, float[] rows, int offset) {
+        writeTransform(index, rows, offset);
+        markDirty(index, index);
+    }
+
+    /**
+     * Packs a matrix and its normal matrix into the mirror, without marking it dirty.
+     * Callers have to markDirty() whatever they wrote themselves, which lets them mark a whole run of
+     * matrices at once. Many threads can call this at the same time, as long as they write different indices.
+     */
+    public void writeTransform(int index, float[] rows, int offset) {
+        int o = index * BYTES_PER_TRANSFORM;
+        if (RenderUtils.AFFINE_TRANSFORMS) {
+            //Rows instead of columns, so the always 0, 0, 0, 1 bottom row is the one left out
+            o = putValue(o, rows[offset], rows[offset + 1], rows[offset + 2], rows[offset + 3]);
+            o = putValue(o, rows[offset + 4], rows[offset + 5], rows[offset + 6], rows[offset + 7]);
+            o = putValue(o, rows[offset + 8], rows[offset + 9], rows[offset + 10], rows[offset + 11]);
+        } else {
+            o = putValue(o, rows[offset], rows[offset + 4], rows[offset + 8], 0);
+            o = putValue(o, rows[offset + 1], rows[offset + 5], rows[offset + 9], 0);
+            o = putValue(o, rows[offset + 2], rows[offset + 6], rows[offset + 10], 0);
+            o = putValue(o, rows[offset + 3], rows[offset + 7], rows[offset + 11], 1);
         }
-        int width = Math.min(MAX_SIZE, numPixels);
-        int height = Math.max(numPixels / MAX_SIZE, 1);
-        copyBuffer = BufferUtils.createFloatBuffer(width * 4);
+        writeNormalMatrix(o, rows, offset);
+    }
 
-        //Generate the texture with openGL
-        handle = GlStateManager._genTexture();
-        GlStateManager._bindTexture(handle);
-        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        //GlStateManager wants an IntBuffer down here for some reason
-        FloatBuffer data = createDefaultFloatBuffer(numPixels * 4);
+    /**
+     * Writes the normal matrix of a transform as 3 rows, each in its own texel.
+     * The normal matrix is the inverse transpose of the top left 3x3 of the transform. When that's only
+     * a rotation and a uniform scale, the 3x3 itself points normals the same way, so it's used as is.
+     * The shader normalizes normals after transforming them, so the length of the result doesn't matter.
+     */
+    private void writeNormalMatrix(int o, float[] rows, int offset) {
+        float a11 = rows[offset], a12 = rows[offset + 1], a13 = rows[offset + 2];
+        float a21 = rows[offset + 4], a22 = rows[offset + 5], a23 = rows[offset + 6];
+        float a31 = rows[offset + 8], a32 = rows[offset + 9], a33 = rows[offset + 10];
 
-        //Set the UNPACK_ALIGNMENT since it breaks without doing this apparently
-        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 1);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA32F, width, height, 0, GL_RGBA, GL_FLOAT, data);
-        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 4);
+        //The columns are the transformed axes. If they're all at right angles and the same length, it's rigid.
+        float len1 = a11 * a11 + a21 * a21 + a31 * a31;
+        float len2 = a12 * a12 + a22 * a22 + a32 * a32;
+        float len3 = a13 * a13 + a23 * a23 + a33 * a33;
+        float dot12 = a11 * a12 + a21 * a22 + a31 * a32;
+        float dot13 = a11 * a13 + a21 * a23 + a31 * a33;
+        float dot23 = a12 * a13 + a22 * a23 + a32 * a33;
+        float tolerance = RIGID_TOLERANCE * len1;
+        if (Math.abs(len1 - len2) <= tolerance && Math.abs(len1 - len3) <= tolerance
+                && Math.abs(dot12) <= tolerance && Math.abs(dot13) <= tolerance && Math.abs(dot23) <= tolerance) {
+            o = putValue(o, a11, a12, a13, 0);
+            o = putValue(o, a21, a22, a23, 0);
+            putValue(o, a31, a32, a33, 0);
+            return;
+        }
 
-        GlStateManager._bindTexture(0);
-        glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        //Otherwise it's the transpose of the inverse. If it can't be inverted, like a part scaled to 0,
+        //invertAffine() leaves it as it is, which is fine since a part with no area has no normals to speak of.
+        MutableMatrix4 inverse = INVERSE_SCRATCH.get().setAffineRows(rows, offset).invertAffine();
+        o = putValue(o, inverse.a11, inverse.a21, inverse.a31, 0);
+        o = putValue(o, inverse.a12, inverse.a22, inverse.a32, 0);
+        putValue(o, inverse.a13, inverse.a23, inverse.a33, 0);
     }
 
-    public void bind(int textureUnit) {
-        GlStateManager._activeTexture(GL_TEXTURE0 + textureUnit);
-        GlStateManager._bindTexture(handle);
+    /**
+     * Writes one texel into the mirror at the given byte offset.
+     * @return The offset of the next texel.
+     */
+    private int putValue(int offset, double x, double y, double z, double w) {
+        if (RenderUtils.HALF_PRECISION_TRANSFORMS) {
+            mirror.putShort(offset, MathUtils.floatToHalf((float) x));
+            mirror.putShort(offset + 2, MathUtils.floatToHalf((float) y));
+            mirror.putShort(offset + 4, MathUtils.floatToHalf((float) z));
+            mirror.putShort(offset + 6, MathUtils.floatToHalf((float) w));
+        } else {
+            mirror.putFloat(offset, (float) x);
+            mirror.putFloat(offset + 4, (float) y);
+            mirror.putFloat(offset + 8, (float) z);
+            mirror.putFloat(offset + 12, (float) w);
+        }
+        return offset + BYTES_PER_TEXEL;
     }
 
-    public void close() {
-        GlStateManager._deleteTexture(handle);
+    /**
+     * Marks a range of matrices as changed, so that they get uploaded on the next flush().
+     * Synchronized, since AvatarStates are posed on several threads at once.
+     * @param firstIndex The index of the first changed matrix.
+     * @param lastIndex The index of the last changed matrix.
+     */
+    public synchronized void markDirty(int firstIndex, int lastIndex) {
+        //Parts are usually visited in index order, so most of the time this just extends the last range
+        if (dirtyCount > 0) {
+            long last = dirtyRanges[dirtyCount - 1];
+            int lastFirst = (int) (last >>> 32);
+            int lastLast = (int) last;
+            if (firstIndex >= lastFirst && firstIndex <= lastLast + 1) {
+                dirtyRanges[dirtyCount - 1] = pack(lastFirst, Math.max(lastLast, lastIndex));
+                return;
+            }
+        }
+        if (dirtyCount == dirtyRanges.length)
+            dirtyRanges = Arrays.copyOf(dirtyRanges, dirtyCount * 2);
+        dirtyRanges[dirtyCount++] = pack(firstIndex, lastIndex);
     }
 
     /**
-     * Uploads a buffer of vertex data into the texture.
-     * Can upload multiple contiguous matrices at once.
-     * @param firstIndex The index of the first matrix to be uploaded.
-     * @param lastIndex The index of the second matrix to be uploaded.
-     * @param buf The buffer containing the data to be uploaded.
+     * Uploads everything which changed since the last flush. Call once per frame, before drawing.
      */
-    public void uploadData(int firstIndex, int lastIndex, FloatBuffer buf) {
+    public void flush() {
+        if (dirtyCount == 0) return;
         //Just slap this on there. If you allow this to run while the game is paused, it causes major glitches and crashes
-        //the game sometimes. for some reason.
+        //the game sometimes. for some reason. The ranges stay dirty, so they'll get uploaded once it's unpaused.
         if (MinecraftClient.getInstance().isPaused()) return;
-        int maxSizeInMatrices = MAX_SIZE / 4; //each matrix is 4 pixels
-        bind(1);
-        int startCopy = firstIndex;
-        //Set the GL unpacking alignment to 1 while uploading textures, since our data is contiguous
-        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 1);
-        //Iterate over the texture one row at a time, to upload contiguous data segments
-        while (startCopy <= lastIndex) {
-            int endCopy = Math.min(lastIndex, (firstIndex / maxSizeInMatrices + 1) * maxSizeInMatrices - 1);
-            int copyWidth = endCopy - startCopy + 1; //Number of matrices we're filling
-            //Clear the buffer since last time we used it
-            copyBuffer.clear();
-            //Put the amount we're copying into the buffer
-            copyBuffer.put(0, buf, (startCopy - firstIndex) * 16, copyWidth * 16);
-            //Set position manually, since the above "put" method doesn't modify it
-            copyBuffer.position(copyWidth * 16);
-            //Flip buffer before read
-            copyBuffer.flip();
-            int x = startCopy % maxSizeInMatrices;
-            int y = startCopy / maxSizeInMatrices;
-            //GlStateManager version only supports a long pointer for some reason
-            glTexSubImage2D(GL_TEXTURE_2D, 0, x * 4, y, copyWidth * 4, 1, GL_RGBA, GL_FLOAT, copyBuffer);
-            startCopy = endCopy + 1;
+
+        Arrays.sort(dirtyRanges, 0, dirtyCount);
+        beginUploads();
+        int first = (int) (dirtyRanges[0] >>> 32);
+        int last = (int) dirtyRanges[0];
+        for (int i = 1; i < dirtyCount; i++) {
+            int nextFirst = (int) (dirtyRanges[i] >>> 32);
+            int nextLast = (int) dirtyRanges[i];
+            if (nextFirst <= last + 1 + MERGE_GAP) {
+                last = Math.max(last, nextLast);
+            } else {
+                uploadRange(first, last);
+                first = nextFirst;
+                last = nextLast;
+            }
         }
-        //Reset the unpack alignment back to the default of 4
-        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 4);
+        uploadRange(first, last);
+        uploadCount += finishUploads();
+        dirtyCount = 0;
+    }
+
+    private void uploadRange(int firstIndex, int lastIndex) {
+        mirror.limit((lastIndex + 1) * BYTES_PER_TRANSFORM).position(firstIndex * BYTES_PER_TRANSFORM);
+        uploadCount += upload(firstIndex, lastIndex, mirror);
+        uploadedBytes += (lastIndex - firstIndex + 1) * BYTES_PER_TRANSFORM;
+        mirror.clear();
+    }
+
+    /**
+     * Uploads a range of matrices to the GPU.
+     * @param firstIndex The index of the first matrix to be uploaded.
+     * @param lastIndex The index of the last matrix to be uploaded.
+     * @param data The packed matrices, from the buffer's position up to its limit.
+     * @return The number of upload calls it took.
+     */
+    protected abstract int upload(int firstIndex, int lastIndex, ByteBuffer data);
+
+    /**
+     * Called at the start of each flush, before any calls to upload().
+     */
+    protected void beginUploads() {
+
     }
 
     /**
-     * Creates a FloatBuffer completely filled with copies of the identity matrix
+     * Called at the end of each flush, after all the calls to upload().
+     * Backends which only gather data in upload() send it off here.
+     * @return The number of upload calls it took.
      */
-    private static FloatBuffer createDefaultFloatBuffer(int numFloats) {
-        FloatBuffer buffer = BufferUtils.createFloatBuffer(numFloats);
-        for (int i = 0; i < numFloats; i++)
-            buffer.put(i % 16 % 5 == 0 ? 1 : 0);
-        buffer.flip();
-        return buffer;
+    protected int finishUploads() {
+        return 0;
+    }
+
+    /**
+     * Should be called after each draw call which reads from this texture.
+     * Backends which write straight into GPU memory use it to know when that memory is safe to touch again.
+     */
+    public void afterDraw() {
+
+    }
+
+    /**
+     * Finishes counting uploads for this frame. Call once per frame, after all the flushes.
+     */
+    public static void endFrame() {
+        lastFrameUploadCount = uploadCount;
+        lastFrameUploadedBytes = uploadedBytes;
+        uploadCount = 0;
+        uploadedBytes = 0;
+    }
+
+    /**
+     * The number of upload calls made by all TransformTextures during the last frame.
+     */
+    public static int getUploadsLastFrame() {
+        return lastFrameUploadCount;
+    }
+
+    /**
+     * The number of bytes uploaded by all TransformTextures during the last frame.
+     */
+    public static int getBytesUploadedLastFrame() {
+        return lastFrameUploadedBytes;
+    }
+
+    private static long pack(int firstIndex, int lastIndex) {
+        return ((long) firstIndex << 32) | (lastIndex & 0xFFFFFFFFL);
     }
 
 }
@@ -0,0 +1,179 @@
+package net.fabricmc.example.rendering.textures;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import net.fabricmc.example.math.MathUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * A TransformTexture stored in a regular 2D texture.
+ * Used when texture buffers aren't available.
+ */
+public class TransformTexture2D extends TransformTexture {
+
+    //The maximum size of a transform texture is 256x256, translating to 9362 parts in your model (10922 with affine transforms).
+    //Groups don't count towards this limit, meaning you'd have to be truly insane to break it with normal usage.
+    public static final int MAX_SIZE = 256;
+    //The OpenGL handle for this texture object
+    private final int handle;
+
+    //Uploads go through a ring of pixel buffer objects. The driver copies from those into the texture
+    //whenever the texture is free, so we never wait on a draw which is still reading it.
+    //Each flush moves on to the next buffer, and fences make sure the GPU is done with it before we write into it again.
+    private static final int PBO_RING_SIZE = 3;
+    private final int[] pbos = new int[PBO_RING_SIZE];
+    private final long[] pboFences = new long[PBO_RING_SIZE];
+    private int currentPbo;
+    //The current PBO while it's mapped during a flush
+    private ByteBuffer mappedPbo;
+    //Ranges written into the current PBO this flush, as pairs of first and last index
+    private int[] pendingRanges = new int[32];
+    private int pendingCount;
+
+    public TransformTexture2D(int numTransforms) {
+        //Each transform takes TEXELS_PER_TRANSFORM pixels, with transforms packed one after another along the rows.
+        //Did power of 2 because I felt like it, probably not a noticeable difference but w/e
+        super(MathUtils.nextPowerOfTwo(numTransforms * TEXELS_PER_TRANSFORM) / TEXELS_PER_TRANSFORM);
+        int numPixels = getCapacity() * TEXELS_PER_TRANSFORM;
+        if (numPixels > MAX_SIZE*MAX_SIZE) {
+            throw new IllegalStateException("Bro how do u have over " + MAX_SIZE*MAX_SIZE/TEXELS_PER_TRANSFORM + " model parts what r u doing");
+        }
+        int width = Math.min(MAX_SIZE, numPixels);
+        int height = (numPixels + MAX_SIZE - 1) / MAX_SIZE;
+
+        //Generate the texture with openGL
+        handle = GlStateManager._genTexture();
+        GlStateManager._bindTexture(handle);
+        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        GlStateManager._texParameter(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+
+        //Set the UNPACK_ALIGNMENT since it breaks without doing this apparently
+        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 1);
+        //Start out with the mirror's contents, which are all identity matrices.
+        //The last row can be only partly used, so the whole rows and the leftover get uploaded separately.
+        glTexImage2D(GL_TEXTURE_2D, 0, INTERNAL_FORMAT, width, height, 0, GL_RGBA, PIXEL_TYPE, (ByteBuffer) null);
+        int wholeRows = numPixels / MAX_SIZE;
+        int leftover = numPixels % MAX_SIZE;
+        if (wholeRows > 0) {
+            mirror.limit(wholeRows * MAX_SIZE * BYTES_PER_TEXEL);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, MAX_SIZE, wholeRows, GL_RGBA, PIXEL_TYPE, mirror);
+        }
+        if (leftover > 0) {
+            mirror.limit(numPixels * BYTES_PER_TEXEL).position(wholeRows * MAX_SIZE * BYTES_PER_TEXEL);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, wholeRows, leftover, 1, GL_RGBA, PIXEL_TYPE, mirror);
+        }
+        mirror.clear();
+        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 4);
+
+        GlStateManager._bindTexture(0);
+        glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        //Each PBO can hold the whole texture, so any flush fits in one
+        for (int i = 0; i < PBO_RING_SIZE; i++) {
+            pbos[i] = GlStateManager._glGenBuffers();
+            GlStateManager._glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbos[i]);
+            GlStateManager._glBufferData(GL_PIXEL_UNPACK_BUFFER, (long) getCapacity() * BYTES_PER_TRANSFORM, GL_STREAM_DRAW);
+        }
+        GlStateManager._glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    @Override
+    public void bind(int textureUnit) {
+        GlStateManager._activeTexture(GL_TEXTURE0 + textureUnit);
+        GlStateManager._bindTexture(handle);
+    }
+
+    @Override
+    public void close() {
+        GlStateManager._deleteTexture(handle);
+        for (int i = 0; i < PBO_RING_SIZE; i++) {
+            GlStateManager._glDeleteBuffers(pbos[i]);
+            if (pboFences[i] != 0)
+                glDeleteSync(pboFences[i]);
+        }
+    }
+
+    @Override
+    protected void beginUploads() {
+        currentPbo = (currentPbo + 1) % PBO_RING_SIZE;
+        //Only waits if the GPU is more than PBO_RING_SIZE flushes behind
+        if (pboFences[currentPbo] != 0) {
+            glClientWaitSync(pboFences[currentPbo], GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L);
+            glDeleteSync(pboFences[currentPbo]);
+            pboFences[currentPbo] = 0;
+        }
+        GlStateManager._glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbos[currentPbo]);
+        //Unsynchronized, since the fence already told us the GPU is done with this buffer
+        mappedPbo = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, (long) getCapacity() * BYTES_PER_TRANSFORM,
+                GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+        pendingCount = 0;
+    }
+
+    @Override
+    protected int upload(int firstIndex, int lastIndex, ByteBuffer data) {
+        //Matrices go at the same offset in the PBO as in the texture, which makes the copies below simple
+        mappedPbo.put(firstIndex * BYTES_PER_TRANSFORM, data, data.position(), data.remaining());
+        if (pendingCount == pendingRanges.length)
+            pendingRanges = Arrays.copyOf(pendingRanges, pendingCount * 2);
+        pendingRanges[pendingCount++] = firstIndex;
+        pendingRanges[pendingCount++] = lastIndex;
+        return 0;
+    }
+
+    @Override
+    protected int finishUploads() {
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+        mappedPbo = null;
+
+        bind(1);
+        int uploads = 0;
+        //Set the GL unpacking alignment to 1 while uploading textures, since our data is contiguous
+        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 1);
+        for (int i = 0; i < pendingCount; i += 2)
+            uploads += copyRows(pendingRanges[i], pendingRanges[i + 1]);
+        //Reset the unpack alignment back to the default of 4
+        GlStateManager._pixelStore(GL_UNPACK_ALIGNMENT, 4);
+
+        //The GPU is done with this PBO once it's finished the copies above
+        pboFences[currentPbo] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        //Minecraft's own texture uploads break if a PBO is left bound
+        GlStateManager._glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        return uploads;
+    }
+
+    /**
+     * Copies a range of matrices from the bound PBO into the texture, in row-aligned pieces.
+     * That's at most a partial row at the start, a block of whole rows in the middle, and a partial row at the end.
+     * Works in pixels rather than matrices, since a matrix can be split across the end of a row.
+     * @return The number of glTexSubImage2D calls it took.
+     */
+    private int copyRows(int firstIndex, int lastIndex) {
+        int uploads = 0;
+        int startCopy = firstIndex * TEXELS_PER_TRANSFORM;
+        int lastPixel = (lastIndex + 1) * TEXELS_PER_TRANSFORM - 1;
+        while (startCopy <= lastPixel) {
+            int x = startCopy % MAX_SIZE;
+            int y = startCopy / MAX_SIZE;
+            int remaining = lastPixel - startCopy + 1;
+            int copyWidth, copyHeight;
+            if (x == 0 && remaining >= MAX_SIZE) {
+                copyWidth = MAX_SIZE;
+                copyHeight = remaining / MAX_SIZE;
+            } else {
+                copyWidth = Math.min(remaining, MAX_SIZE - x);
+                copyHeight = 1;
+            }
+            //With a PBO bound, the last argument is an offset into it rather than a pointer
+            glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, copyWidth, copyHeight, GL_RGBA, PIXEL_TYPE, (long) startCopy * BYTES_PER_TEXEL);
+            startCopy += copyWidth * copyHeight;
+            uploads++;
+        }
+        return uploads;
+    }
+
+}
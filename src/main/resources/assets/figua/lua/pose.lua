@@ -0,0 +1,80 @@
+-- The "pose" API, for setting the rotation, position and scale of many model parts at once by their index.
+-- Writes only touch Lua tables. Once per frame, AvatarState calls the flush function returned here, which packs
+-- every part changed since the last flush into one binary string, so the whole pose reaches Java in one go.
+-- The first write after a flush also calls onFirstChange, so Java can skip flushing frames where nothing was set.
+-- Called once per AvatarState, with the number of parts in its model and onFirstChange.
+-- Returns the pose table and the flush function.
+
+local pack, concat = string.pack, table.concat
+local setmetatable, type, error, mathType = setmetatable, type, error, math.type
+
+-- Which of a part's values were set since the last flush. Has to agree with AvatarState.applyPose.
+local ROT, POS, SCALE = 1, 2, 4
+-- Part index, the bits above, then rotation, position and scale
+local ENTRY_FORMAT = "<i4i4fffffffff"
+
+return function(partCount, onFirstChange)
+    -- 3 values per part for each of these, at index * 3 + 1 to + 3
+    local rot, pos, scale = {}, {}, {}
+    -- Parts changed since the last flush, in the order they were first changed, and which values were set
+    local dirty, dirtyCount, setBits = {}, 0, {}
+    -- Reused for packing, so flushing doesn't make a new table each frame
+    local entries = {}
+
+    local function checkIndex(i)
+        if mathType(i) ~= "integer" or i < 0 or i >= partCount then
+            error("Part index must be an integer from 0 to " .. (partCount - 1), 3)
+        end
+    end
+
+    local function set(values, bit, i, x, y, z)
+        checkIndex(i)
+        -- Vectors work too, but three numbers don't make a table
+        if type(x) == "table" then
+            x, y, z = x[1], x[2], x[3]
+        end
+        -- Checked now, rather than failing when it's flushed
+        if type(x) ~= "number" or type(y) ~= "number" or type(z) ~= "number" then
+            error("Expected 3 numbers or a vector", 3)
+        end
+        local o = i * 3
+        values[o + 1], values[o + 2], values[o + 3] = x, y, z
+        local bits = setBits[i]
+        if not bits then
+            if dirtyCount == 0 then onFirstChange() end
+            dirtyCount = dirtyCount + 1
+            dirty[dirtyCount] = i
+            setBits[i] = bit
+        else
+            setBits[i] = bits | bit
+        end
+    end
+
+    local pose = {}
+
+    -- Rotation in degrees
+    function pose.setRot(i, x, y, z) set(rot, ROT, i, x, y, z) end
+    -- Position, added on top of where the part is in the model, in the same units as the model
+    function pose.setPos(i, x, y, z) set(pos, POS, i, x, y, z) end
+    function pose.setScale(i, x, y, z) set(scale, SCALE, i, x, y, z) end
+
+    local function flush()
+        if dirtyCount == 0 then return nil end
+        for n = 1, dirtyCount do
+            local i = dirty[n]
+            local o = i * 3
+            entries[n] = pack(ENTRY_FORMAT, i, setBits[i],
+                    rot[o + 1] or 0, rot[o + 2] or 0, rot[o + 3] or 0,
+                    pos[o + 1] or 0, pos[o + 2] or 0, pos[o + 3] or 0,
+                    scale[o + 1] or 1, scale[o + 2] or 1, scale[o + 3] or 1)
+            setBits[i] = nil
+            dirty[n] = nil
+        end
+        local data = concat(entries, "", 1, dirtyCount)
+        for n = 1, dirtyCount do entries[n] = nil end
+        dirtyCount = 0
+        return data
+    end
+
+    return setmetatable(pose, { __newindex = function() error("Cannot edit the pose table!", 2) end, __metatable = false }), flush
+end
@@ -0,0 +1,191 @@
+-- The "vectors" API, done entirely in Lua so vector math never has to cross over to Java.
+-- Vectors are tables holding their components at 1, 2, 3 (and 4), with one shared metatable per size.
+-- Java only reads them when they're passed to something like setRot, see VectorsApi.checkVector3.
+-- Run once per LuaState before the sandboxer, so it can keep its own copies of globals the sandbox removes.
+
+local setmetatable, type, tostring, error = setmetatable, type, tostring, error
+local sqrt, fmod = math.sqrt, math.fmod
+
+local function readOnly()
+    error("Cannot set values in a vector!", 2)
+end
+
+local function checkNumber(value)
+    if type(value) ~= "number" then
+        error("Expected a number for a vector component, got " .. type(value), 3)
+    end
+    -- Components are always floats, like they were as Java doubles
+    return value + 0.0
+end
+
+---------------------------------------------------------------------------
+-- vec2
+---------------------------------------------------------------------------
+
+local vec2mt = {}
+local vec2names = { x = 1, y = 2, r = 1, g = 2, ["1"] = 1, ["2"] = 2 }
+local vec2methods = {}
+
+local function new2(x, y)
+    return setmetatable({ x, y }, vec2mt)
+end
+
+function vec2methods.length(v)
+    return sqrt(v[1] * v[1] + v[2] * v[2])
+end
+
+function vec2methods.dot(a, b)
+    return a[1] * b[1] + a[2] * b[2]
+end
+
+vec2mt.__index = function(v, k)
+    local i = vec2names[k]
+    if i then return v[i] end
+    return vec2methods[k]
+end
+vec2mt.__newindex = readOnly
+vec2mt.__metatable = false
+vec2mt.__add = function(a, b) return new2(a[1] + b[1], a[2] + b[2]) end
+vec2mt.__sub = function(a, b) return new2(a[1] - b[1], a[2] - b[2]) end
+vec2mt.__unm = function(a) return new2(-a[1], -a[2]) end
+vec2mt.__mul = function(a, b)
+    if type(a) == "number" then return new2(a * b[1], a * b[2]) end
+    if type(b) == "number" then return new2(a[1] * b, a[2] * b) end
+    return new2(a[1] * b[1], a[2] * b[2])
+end
+vec2mt.__div = function(a, b)
+    if type(b) == "number" then return new2(a[1] / b, a[2] / b) end
+    return new2(a[1] / b[1], a[2] / b[2])
+end
+vec2mt.__mod = function(a, b) return new2(fmod(a[1], b[1]), fmod(a[2], b[2])) end
+vec2mt.__pow = function(a, b) return new2(a[1] ^ b[1], a[2] ^ b[2]) end
+vec2mt.__eq = function(a, b) return a[1] == b[1] and a[2] == b[2] end
+vec2mt.__tostring = function(v)
+    return "{" .. tostring(v[1]) .. ", " .. tostring(v[2]) .. "}"
+end
+
+---------------------------------------------------------------------------
+-- vec3
+---------------------------------------------------------------------------
+
+local vec3mt = {}
+local vec3names = { x = 1, y = 2, z = 3, r = 1, g = 2, b = 3, ["1"] = 1, ["2"] = 2, ["3"] = 3 }
+local vec3methods = {}
+
+local function new3(x, y, z)
+    return setmetatable({ x, y, z }, vec3mt)
+end
+
+function vec3methods.length(v)
+    return sqrt(v[1] * v[1] + v[2] * v[2] + v[3] * v[3])
+end
+
+function vec3methods.dot(a, b)
+    return a[1] * b[1] + a[2] * b[2] + a[3] * b[3]
+end
+
+function vec3methods.cross(a, b)
+    return new3(
+            a[2] * b[3] - a[3] * b[2],
+            a[3] * b[1] - a[1] * b[3],
+            a[1] * b[2] - a[2] * b[1]
+    )
+end
+
+vec3mt.__index = function(v, k)
+    local i = vec3names[k]
+    if i then return v[i] end
+    return vec3methods[k]
+end
+vec3mt.__newindex = readOnly
+vec3mt.__metatable = false
+vec3mt.__add = function(a, b) return new3(a[1] + b[1], a[2] + b[2], a[3] + b[3]) end
+vec3mt.__sub = function(a, b) return new3(a[1] - b[1], a[2] - b[2], a[3] - b[3]) end
+vec3mt.__unm = function(a) return new3(-a[1], -a[2], -a[3]) end
+vec3mt.__mul = function(a, b)
+    if type(a) == "number" then return new3(a * b[1], a * b[2], a * b[3]) end
+    if type(b) == "number" then return new3(a[1] * b, a[2] * b, a[3] * b) end
+    return new3(a[1] * b[1], a[2] * b[2], a[3] * b[3])
+end
+vec3mt.__div = function(a, b)
+    if type(b) == "number" then return new3(a[1] / b, a[2] / b, a[3] / b) end
+    return new3(a[1] / b[1], a[2] / b[2], a[3] / b[3])
+end
+vec3mt.__mod = function(a, b) return new3(fmod(a[1], b[1]), fmod(a[2], b[2]), fmod(a[3], b[3])) end
+vec3mt.__pow = function(a, b) return new3(a[1] ^ b[1], a[2] ^ b[2], a[3] ^ b[3]) end
+vec3mt.__eq = function(a, b) return a[1] == b[1] and a[2] == b[2] and a[3] == b[3] end
+vec3mt.__tostring = function(v)
+    return "{" .. tostring(v[1]) .. ", " .. tostring(v[2]) .. ", " .. tostring(v[3]) .. "}"
+end
+
+---------------------------------------------------------------------------
+-- vec4
+---------------------------------------------------------------------------
+
+local vec4mt = {}
+local vec4names = { x = 1, y = 2, z = 3, w = 4, r = 1, g = 2, b = 3, a = 4, ["1"] = 1, ["2"] = 2, ["3"] = 3, ["4"] = 4 }
+local vec4methods = {}
+
+local function new4(x, y, z, w)
+    return setmetatable({ x, y, z, w }, vec4mt)
+end
+
+function vec4methods.length(v)
+    return sqrt(v[1] * v[1] + v[2] * v[2] + v[3] * v[3] + v[4] * v[4])
+end
+
+function vec4methods.dot(a, b)
+    return a[1] * b[1] + a[2] * b[2] + a[3] * b[3] + a[4] * b[4]
+end
+
+vec4mt.__index = function(v, k)
+    local i = vec4names[k]
+    if i then return v[i] end
+    return vec4methods[k]
+end
+vec4mt.__newindex = readOnly
+vec4mt.__metatable = false
+vec4mt.__add = function(a, b) return new4(a[1] + b[1], a[2] + b[2], a[3] + b[3], a[4] + b[4]) end
+vec4mt.__sub = function(a, b) return new4(a[1] - b[1], a[2] - b[2], a[3] - b[3], a[4] - b[4]) end
+vec4mt.__unm = function(a) return new4(-a[1], -a[2], -a[3], -a[4]) end
+vec4mt.__mul = function(a, b)
+    if type(a) == "number" then return new4(a * b[1], a * b[2], a * b[3], a * b[4]) end
+    if type(b) == "number" then return new4(a[1] * b, a[2] * b, a[3] * b, a[4] * b) end
+    return new4(a[1] * b[1], a[2] * b[2], a[3] * b[3], a[4] * b[4])
+end
+vec4mt.__div = function(a, b)
+    if type(b) == "number" then return new4(a[1] / b, a[2] / b, a[3] / b, a[4] / b) end
+    return new4(a[1] / b[1], a[2] / b[2], a[3] / b[3], a[4] / b[4])
+end
+vec4mt.__mod = function(a, b) return new4(fmod(a[1], b[1]), fmod(a[2], b[2]), fmod(a[3], b[3]), fmod(a[4], b[4])) end
+vec4mt.__pow = function(a, b) return new4(a[1] ^ b[1], a[2] ^ b[2], a[3] ^ b[3], a[4] ^ b[4]) end
+vec4mt.__eq = function(a, b) return a[1] == b[1] and a[2] == b[2] and a[3] == b[3] and a[4] == b[4] end
+vec4mt.__tostring = function(v)
+    return "{" .. tostring(v[1]) .. ", " .. tostring(v[2]) .. ", " .. tostring(v[3]) .. ", " .. tostring(v[4]) .. "}"
+end
+
+---------------------------------------------------------------------------
+-- Constructors, same as before: vecN(num) fills every component with num
+---------------------------------------------------------------------------
+
+local vectors = {}
+
+function vectors.vec2(x, y)
+    x = checkNumber(x)
+    if y == nil then return new2(x, x) end
+    return new2(x, checkNumber(y))
+end
+
+function vectors.vec3(x, y, z)
+    x = checkNumber(x)
+    if y == nil then return new3(x, x, x) end
+    return new3(x, checkNumber(y), checkNumber(z))
+end
+
+function vectors.vec4(x, y, z, w)
+    x = checkNumber(x)
+    if y == nil then return new4(x, x, x, x) end
+    return new4(x, checkNumber(y), checkNumber(z), checkNumber(w))
+end
+
+return vectors
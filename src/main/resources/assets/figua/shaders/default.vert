@@ -1,33 +1,99 @@
 #version 330
 
+#ifdef COMPACT_VERTICES
+layout (location = 0) in vec4 Position; //Normalized within the mesh bounds, w is padding
+layout (location = 1) in vec2 TextureUV;
+layout (location = 2) in uvec2 IndexAndFace; //Transform index, face direction
+
+uniform vec3 PositionOffset;
+uniform vec3 PositionScale;
+
+//The normal of each face direction: north, east, south, west, up, down
+const vec3 FACE_NORMALS[6] = vec3[](
+    vec3(0.0, 0.0, -1.0),
+    vec3(1.0, 0.0, 0.0),
+    vec3(0.0, 0.0, 1.0),
+    vec3(-1.0, 0.0, 0.0),
+    vec3(0.0, 1.0, 0.0),
+    vec3(0.0, -1.0, 0.0)
+);
+#else
 layout (location = 0) in vec3 Position;
 layout (location = 1) in vec4 Color;
 layout (location = 2) in vec2 TextureUV;
 layout (location = 3) in vec3 Normal;
 layout (location = 4) in int TransformIndex;
+#endif
+
+//Per-instance inputs, one set for each AvatarState drawn
+layout (location = 8) in mat4 InstanceModelView; //Takes up locations 8 to 11
+layout (location = 12) in int InstanceTransformOffset;
 
-uniform mat4 ModelViewMat;
 uniform mat4 ProjMat;
 
+#ifdef TRANSFORM_BUFFER
+uniform samplerBuffer TransformTexture;
+#else
 uniform sampler2D TransformTexture;
+#endif
+
+//Affine transforms leave out the bottom row of the matrix, see TransformTexture.
+//The matrix is followed by the 3 rows of its normal matrix.
+#ifdef AFFINE_TRANSFORMS
+#define MATRIX_TEXELS 3
+#else
+#define MATRIX_TEXELS 4
+#endif
+#define TEXELS_PER_TRANSFORM (MATRIX_TEXELS + 3)
+
+vec4 fetchTransformTexel(int i) {
+#ifdef TRANSFORM_BUFFER
+    return texelFetch(TransformTexture, i);
+#else
+    return texelFetch(TransformTexture, ivec2(i % 256, i / 256), 0);
+#endif
+}
 
 out vec2 vertexUV;
 out vec3 vertexNormal;
 out vec4 vertexColor;
 
 void main() {
-    int x = (TransformIndex * 4) % 256;
-    int y = TransformIndex / 64;
-    vec4 col1 = texelFetch(TransformTexture, ivec2(x, y), 0);
-    vec4 col2 = texelFetch(TransformTexture, ivec2(x+1, y), 0);
-    vec4 col3 = texelFetch(TransformTexture, ivec2(x+2, y), 0);
-    vec4 col4 = texelFetch(TransformTexture, ivec2(x+3, y), 0);
+#ifdef COMPACT_VERTICES
+    vec3 position = PositionOffset + Position.xyz * PositionScale;
+    vec3 inNormal = FACE_NORMALS[IndexAndFace.y];
+    vec4 color = vec4(1.0);
+    int transformIndex = int(IndexAndFace.x) + InstanceTransformOffset;
+#else
+    vec3 position = Position;
+    vec3 inNormal = Normal;
+    vec4 color = Color;
+    int transformIndex = TransformIndex + InstanceTransformOffset;
+#endif
+
+    int base = transformIndex * TEXELS_PER_TRANSFORM;
+#ifdef AFFINE_TRANSFORMS
+    //Stored as rows, so build the transpose and flip it back
+    vec4 row1 = fetchTransformTexel(base);
+    vec4 row2 = fetchTransformTexel(base+1);
+    vec4 row3 = fetchTransformTexel(base+2);
+    mat4 transformMatrix = transpose(mat4(row1, row2, row3, vec4(0.0, 0.0, 0.0, 1.0)));
+#else
+    vec4 col1 = fetchTransformTexel(base);
+    vec4 col2 = fetchTransformTexel(base+1);
+    vec4 col3 = fetchTransformTexel(base+2);
+    vec4 col4 = fetchTransformTexel(base+3);
     mat4 transformMatrix = mat4(col1, col2, col3, col4);
-    gl_Position = ProjMat * ModelViewMat * transformMatrix * vec4(Position, 1.0);
+#endif
+    gl_Position = ProjMat * InstanceModelView * transformMatrix * vec4(position, 1.0);
 
-    vec4 normal = inverse(transpose(transformMatrix)) * vec4(Normal, 0.0);
+    //Worked out on the CPU, rather than inverting the matrix here for every vertex
+    vec3 normalRow1 = fetchTransformTexel(base+MATRIX_TEXELS).xyz;
+    vec3 normalRow2 = fetchTransformTexel(base+MATRIX_TEXELS+1).xyz;
+    vec3 normalRow3 = fetchTransformTexel(base+MATRIX_TEXELS+2).xyz;
+    vec3 normal = vec3(dot(normalRow1, inNormal), dot(normalRow2, inNormal), dot(normalRow3, inNormal));
 
     vertexUV = TextureUV;
-    vertexNormal = normal.xyz / length(normal);
-    vertexColor = Color;
+    vertexNormal = normal / length(normal);
+    vertexColor = color;
 }
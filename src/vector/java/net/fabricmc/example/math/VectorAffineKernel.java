@@ -0,0 +1,39 @@
+package net.fabricmc.example.math;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD version of AffineBatchKernel, using the incubating Vector API.
+ * Each row of a matrix is 4 floats, which fit in one 128-bit vector. A row of the result is
+ * the rows of the local matrix scaled by the parent's row and added up, so each matrix takes
+ * 3 vector loads, 12 vector multiplies and 9 vector adds, instead of 36 scalar multiplies.
+ *
+ * Only ever loaded through AffineBatchKernel.get(), which checks that the Vector API is there first.
+ */
+public class VectorAffineKernel extends AffineBatchKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_128;
+    //The bottom row of an affine matrix, which is only there implicitly
+    private static final FloatVector LAST_ROW = FloatVector.fromArray(SPECIES, new float[] {0, 0, 0, 1}, 0);
+
+    @Override
+    public void compose(float[] world, float[] local, int[] nodeOffsets, int[] parentOffsets, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int o = nodeOffsets[i];
+            int po = parentOffsets[i];
+            FloatVector row1 = FloatVector.fromArray(SPECIES, local, o);
+            FloatVector row2 = FloatVector.fromArray(SPECIES, local, o + 4);
+            FloatVector row3 = FloatVector.fromArray(SPECIES, local, o + 8);
+            //Each parent row is written over only after all of it has been read, and parents are never in the same batch as their children
+            for (int row = 0; row < 12; row += 4) {
+                row1.mul(world[po + row])
+                        .add(row2.mul(world[po + row + 1]))
+                        .add(row3.mul(world[po + row + 2]))
+                        .add(LAST_ROW.mul(world[po + row + 3]))
+                        .intoArray(world, o + row);
+            }
+        }
+    }
+
+}